@@ -31,14 +31,17 @@ import android.view.animation.Animation;
 import android.view.animation.AnimationUtils;
 
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.appcompat.widget.SearchView;
 import androidx.recyclerview.widget.GridLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
+import com.google.android.material.chip.Chip;
 import com.google.android.material.snackbar.Snackbar;
 
 import org.exthmui.theme.adapters.ThemeBaseAdapter;
 import org.exthmui.theme.misc.Constants;
 import org.exthmui.theme.models.ThemeBase;
+import org.exthmui.theme.models.ThemeTarget;
 import org.exthmui.theme.services.ThemeDataService;
 import org.exthmui.theme.services.ThemeManageService;
 import org.exthmui.theme.utils.NotificationUtil;
@@ -46,15 +49,25 @@ import org.exthmui.theme.utils.PackageUtil;
 import org.exthmui.theme.utils.PermissionUtil;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class ThemePickerActivity extends AppCompatActivity {
 
     private static final String TAG = "ThemePickerActivity";
 
     private List<ThemeBase> mThemeList;
+    private List<ThemeBase> mFilteredThemes;
+    private String mSearchQuery;
+    private ThemeTarget mTargetFilter;
+    private Chip mTargetFilterChip;
     private ThemeDataService.ThemeDataBinder mThemeDataBinder;
     private ThemeDataConn mThemeDataConn;
+    private ThemeDataService.ThemeListListener mThemeListListener;
 
     private View mRefreshIconView;
     private Animation mRefreshAnimation;
@@ -75,7 +88,8 @@ public class ThemePickerActivity extends AppCompatActivity {
         mRefreshAnimation = AnimationUtils.loadAnimation(this, R.anim.rotate_anim);
 
         mThemeList = new ArrayList<>();
-        mThemeBaseAdapter = new ThemeBaseAdapter(mThemeList);
+        mFilteredThemes = new ArrayList<>();
+        mThemeBaseAdapter = new ThemeBaseAdapter(mThemeList, this);
         mThemeBaseAdapter.setOnItemClickListener(ThemePickerActivity.this::onThemeItemClick);
         mThemeBaseAdapter.setOnItemLongClickListener(ThemePickerActivity.this::onThemeItemLongClick);
         mGridView = findViewById(R.id.themesGrid);
@@ -83,6 +97,8 @@ public class ThemePickerActivity extends AppCompatActivity {
         GridLayoutManager gridLayoutManager = new GridLayoutManager(this, getResources().getDisplayMetrics().widthPixels / cardWidth);
         mGridView.setLayoutManager(gridLayoutManager);
         mGridView.setAdapter(mThemeBaseAdapter);
+        mTargetFilterChip = findViewById(R.id.target_filter_chip);
+        mTargetFilterChip.setOnCloseIconClickListener(v -> setTargetFilter(null));
 
         Intent mThemeDataService = new Intent(this, ThemeDataService.class);
         mThemeDataConn = new ThemeDataConn();
@@ -95,6 +111,34 @@ public class ThemePickerActivity extends AppCompatActivity {
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.menu_picker, menu);
+        MenuItem searchItem = menu.findItem(R.id.action_search);
+        SearchView searchView = (SearchView) searchItem.getActionView();
+        searchView.setQueryHint(getString(R.string.picker_search_hint));
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                searchView.clearFocus();
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                search(newText);
+                return true;
+            }
+        });
+        searchItem.setOnActionExpandListener(new MenuItem.OnActionExpandListener() {
+            @Override
+            public boolean onMenuItemActionExpand(MenuItem item) {
+                return true;
+            }
+
+            @Override
+            public boolean onMenuItemActionCollapse(MenuItem item) {
+                search(null);
+                return true;
+            }
+        });
         return super.onCreateOptionsMenu(menu);
     }
 
@@ -109,13 +153,16 @@ public class ThemePickerActivity extends AppCompatActivity {
                 new Thread(() -> {
                     updateThemeList();
                     runOnUiThread(() -> {
-                        mThemeBaseAdapter.notifyDataSetChanged();
                         mRefreshAnimation.setRepeatCount(Animation.ABSOLUTE);
                         mRefreshIconView.setEnabled(true);
                     });
                 }).start();
                 return true;
             }
+            case R.id.action_filter_target: {
+                showTargetFilterDialog();
+                return true;
+            }
             case R.id.action_preferences: {
                 Intent intent = new Intent(this, SettingsActivity.class);
                 startActivity(intent);
@@ -128,25 +175,111 @@ public class ThemePickerActivity extends AppCompatActivity {
     @Override
     protected void onDestroy() {
         if (mThemeDataConn != null) {
+            if (mThemeDataBinder != null) {
+                mThemeDataBinder.removeThemeListListener(mThemeListListener);
+            }
+            mThemeBaseAdapter.setThemeDataBinder(null);
             unbindService(mThemeDataConn);
         }
         super.onDestroy();
     }
 
+    // themes arrive through mThemeListListener while the service scans
     public void updateThemeList() {
         mThemeDataBinder.updateThemeList();
-        mThemeList.clear();
-        mThemeList.addAll(mThemeDataBinder.getThemeBaseList());
+    }
+
+    private void search(String query) {
+        mSearchQuery = (query == null || query.trim().isEmpty()) ? null : query;
+        applyFilter();
+    }
+
+    private void showTargetFilterDialog() {
+        final ThemeDataService.ThemeDataBinder binder = mThemeDataBinder;
+        if (binder == null) return;
+        new Thread(() -> {
+            List<ThemeTarget> targets = binder.getOverlayTargets();
+            runOnUiThread(() -> {
+                if (isDestroyed()) return;
+                AlertDialog.Builder builder = new AlertDialog.Builder(this)
+                        .setTitle(R.string.dialog_filter_target_title)
+                        .setNegativeButton(android.R.string.cancel, (dialogInterface, i) -> dialogInterface.dismiss());
+                if (targets.isEmpty()) {
+                    builder.setMessage(R.string.dialog_filter_target_empty);
+                } else {
+                    CharSequence[] labels = new CharSequence[targets.size()];
+                    for (int i = 0; i < labels.length; i++) labels[i] = targets.get(i).getLabel();
+                    builder.setItems(labels, (dialogInterface, i) -> setTargetFilter(targets.get(i)));
+                }
+                builder.show();
+            });
+        }).start();
+    }
+
+    private void setTargetFilter(ThemeTarget target) {
+        mTargetFilter = target;
+        if (target != null) {
+            mTargetFilterChip.setText(target.getLabel());
+            mTargetFilterChip.setVisibility(View.VISIBLE);
+        } else {
+            mTargetFilterChip.setVisibility(View.GONE);
+        }
+        applyFilter();
+    }
+
+    private boolean isFiltering() {
+        return mSearchQuery != null || mTargetFilter != null;
+    }
+
+    private void applyFilter() {
+        if (isFiltering()) {
+            updateFilteredThemes();
+            mThemeBaseAdapter.setData(mFilteredThemes);
+        } else {
+            mThemeBaseAdapter.setData(mThemeList);
+        }
+        mThemeBaseAdapter.notifyDataSetChanged();
+    }
+
+    private void updateFilteredThemes() {
+        mFilteredThemes.clear();
+        if (mThemeDataBinder == null) return;
+        Map<String, ThemeBase> themes = new LinkedHashMap<>();
+        for (ThemeBase theme : mThemeList) {
+            themes.put(theme.getPackageName(), theme);
+        }
+        // search results are ranked, otherwise keep the list order
+        Collection<String> packageNames = mSearchQuery != null ?
+                mThemeDataBinder.searchThemes(mSearchQuery) : themes.keySet();
+        Set<String> targetThemes = mTargetFilter != null ?
+                new HashSet<>(mThemeDataBinder.getThemesForTarget(mTargetFilter.getTargetId())) : null;
+        for (String packageName : packageNames) {
+            ThemeBase theme = themes.get(packageName);
+            if (theme == null || (targetThemes != null && !targetThemes.contains(packageName))) continue;
+            mFilteredThemes.add(theme);
+        }
+    }
+
+    // re-applies the active filter after mThemeList changed, returns false when not filtering
+    private boolean refreshFilter() {
+        if (!isFiltering()) return false;
+        updateFilteredThemes();
+        mThemeBaseAdapter.notifyDataSetChanged();
+        return true;
+    }
+
+    private List<ThemeBase> getShownThemes() {
+        return isFiltering() ? mFilteredThemes : mThemeList;
     }
 
     private void onThemeItemClick(View view, int position) {
         Intent intent = new Intent(this, ThemePreviewActivity.class);
-        intent.putExtra("theme", mThemeList.get(position).getPackageName());
+        intent.putExtra("theme", getShownThemes().get(position).getPackageName());
         startActivity(intent);
     }
 
     private boolean onThemeItemLongClick(View view, int position) {
-        ThemeBase theme = mThemeList.get(position);
+        ThemeBase theme = getShownThemes().get(position);
         if (theme.isRemovable()) return true;
         new AlertDialog.Builder(this)
             .setTitle(R.string.dialog_remove_package_title)
@@ -158,8 +291,7 @@ public class ThemePickerActivity extends AppCompatActivity {
                     @Override
                     public void onResponse(String packageName, int code) {
                         if (code == 0) {
-                            mThemeList.remove(position);
-                            mThemeBaseAdapter.notifyDataSetChanged();
+                            removeTheme(packageName);
                             Snackbar.make(mGridView, R.string.uninstall_theme_succeed, Snackbar.LENGTH_SHORT).show();
                         } else {
                             Snackbar.make(mGridView, getString(R.string.uninstall_theme_failed, code), Snackbar.LENGTH_LONG).show();
@@ -173,16 +305,112 @@ public class ThemePickerActivity extends AppCompatActivity {
         return true;
     }
 
+    private int indexOfTheme(String packageName) {
+        for (int i = 0; i < mThemeList.size(); i++) {
+            if (mThemeList.get(i).getPackageName().equals(packageName)) return i;
+        }
+        return -1;
+    }
+
+    private void removeTheme(String packageName) {
+        int position = indexOfTheme(packageName);
+        if (position == -1) return;
+        mThemeBaseAdapter.invalidateImage(packageName);
+        mThemeList.remove(position);
+        if (refreshFilter()) return;
+        mThemeBaseAdapter.notifyItemRemoved(position);
+    }
+
+    private boolean isSameOrder(List<ThemeBase> themes) {
+        if (themes.size() != mThemeList.size()) return false;
+        for (int i = 0; i < themes.size(); i++) {
+            if (!themes.get(i).getPackageName().equals(mThemeList.get(i).getPackageName())) return false;
+        }
+        return true;
+    }
+
+    private class ThemeListListener implements ThemeDataService.ThemeListListener {
+        @Override
+        public void onThemeAdded(ThemeBase theme) {
+            runOnUiThread(() -> {
+                if (indexOfTheme(theme.getPackageName()) != -1) return;
+                mThemeList.add(theme);
+                if (refreshFilter()) return;
+                mThemeBaseAdapter.notifyItemInserted(mThemeList.size() - 1);
+            });
+        }
+
+        @Override
+        public void onThemeChanged(ThemeBase theme) {
+            runOnUiThread(() -> {
+                int position = indexOfTheme(theme.getPackageName());
+                if (position == -1) {
+                    mThemeList.add(theme);
+                } else {
+                    mThemeList.set(position, theme);
+                    mThemeBaseAdapter.invalidateImage(theme.getPackageName());
+                }
+                if (refreshFilter()) return;
+                if (position == -1) {
+                    mThemeBaseAdapter.notifyItemInserted(mThemeList.size() - 1);
+                } else {
+                    mThemeBaseAdapter.notifyItemChanged(position);
+                }
+            });
+        }
+
+        @Override
+        public void onThemeRemoved(String packageName) {
+            runOnUiThread(() -> removeTheme(packageName));
+        }
+
+        @Override
+        public void onThemesLoaded(List<ThemeBase> themes) {
+            runOnUiThread(() -> {
+                int insertStart = mThemeList.size();
+                List<Integer> changed = new ArrayList<>();
+                for (ThemeBase theme : themes) {
+                    int position = indexOfTheme(theme.getPackageName());
+                    if (position == -1) {
+                        mThemeList.add(theme);
+                    } else {
+                        mThemeList.set(position, theme);
+                        mThemeBaseAdapter.invalidateImage(theme.getPackageName());
+                        changed.add(position);
+                    }
+                }
+                if (refreshFilter()) return;
+                for (int position : changed) {
+                    mThemeBaseAdapter.notifyItemChanged(position);
+                }
+                mThemeBaseAdapter.notifyItemRangeInserted(insertStart, mThemeList.size() - insertStart);
+            });
+        }
+
+        @Override
+        public void onThemeListLoaded(List<ThemeBase> themes) {
+            runOnUiThread(() -> {
+                if (isSameOrder(themes)) return;
+                mThemeList.clear();
+                mThemeList.addAll(themes);
+                if (refreshFilter()) return;
+                mThemeBaseAdapter.notifyDataSetChanged();
+            });
+        }
+    }
+
     private class ThemeDataConn implements ServiceConnection {
         @Override
         public void onServiceConnected(ComponentName componentName, IBinder iBinder) {
             mThemeDataBinder = (ThemeDataService.ThemeDataBinder) iBinder;
             mThemeBaseAdapter.setThemeDataBinder(mThemeDataBinder);
+            if (mThemeListListener == null) mThemeListListener = new ThemeListListener();
+            mThemeDataBinder.addThemeListListener(mThemeListListener);
             if (mThemeList.isEmpty()) {
-                new Thread(() -> {
-                    updateThemeList();
-                    runOnUiThread(() -> mThemeBaseAdapter.notifyDataSetChanged());
-                }).start();
+                // show indexed themes right away, then rescan
+                mThemeList.addAll(mThemeDataBinder.getThemeBaseList());
+                mThemeBaseAdapter.notifyDataSetChanged();
+                new Thread(() -> updateThemeList()).start();
             }
         }
 
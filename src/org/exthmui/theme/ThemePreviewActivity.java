@@ -20,6 +20,7 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
+import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.Bundle;
 import android.os.IBinder;
@@ -52,6 +53,9 @@ import org.exthmui.theme.services.ThemeDataService;
 import org.exthmui.theme.services.ThemeManageService;
 
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 public class ThemePreviewActivity extends AppCompatActivity {
 
@@ -72,6 +76,9 @@ public class ThemePreviewActivity extends AppCompatActivity {
     private ArrayList<ThemeTarget> mThemeTargets;
     private PreviewImageAdapter mPreviewImageAdapter;
     private ArrayList<Drawable> mPreviewImages;
+    private ArrayList<String> mPreviewNames;
+    private String mShownPreview;
+    private List<CompletableFuture<?>> mRequests;
 
     private TextView tvTitle;
     private TextView tvAuthor;
@@ -106,12 +113,11 @@ public class ThemePreviewActivity extends AppCompatActivity {
         targetsView.setLayoutManager(new GridLayoutManager(this, getResources().getInteger(R.integer.preview_target_span_count)));
         targetsView.setAdapter(mThemeTargetAdapter);
 
+        mRequests = new ArrayList<>();
         mPreviewImages = new ArrayList<>();
+        mPreviewNames = new ArrayList<>();
         mPreviewImageAdapter = new PreviewImageAdapter(mPreviewImages);
-        mPreviewImageAdapter.setOnItemClickListener((v, position) -> {
-            imagePreview.setImageDrawable(mPreviewImages.get(position));
-            imagePreview.setVisibility(View.VISIBLE);
-        });
+        mPreviewImageAdapter.setOnItemClickListener((v, position) -> showPreviewImage(position));
         previewsView.setLayoutManager(new LinearLayoutManager(this, RecyclerView.HORIZONTAL, false));
         previewsView.setAdapter(mPreviewImageAdapter);
         imagePreview.setOnClickListener(v -> {
@@ -119,6 +125,8 @@ public class ThemePreviewActivity extends AppCompatActivity {
                 getSupportActionBar().show();
             }
             imagePreview.setVisibility(View.GONE);
+            imagePreview.setImageDrawable(null);
+            mShownPreview = null;
         });
 
         Toolbar toolbar = findViewById(R.id.toolbar);
@@ -196,6 +204,10 @@ public class ThemePreviewActivity extends AppCompatActivity {
 
     @Override
     protected void onDestroy() {
+        for (CompletableFuture<?> request : mRequests) {
+            request.cancel(false);
+        }
+        mRequests.clear();
         if (mThemeDataConn != null) {
             unbindService(mThemeDataConn);
         }
@@ -222,16 +234,8 @@ public class ThemePreviewActivity extends AppCompatActivity {
     private void updateViewForTheme() {
         tvTitle.setText(mThemeItem.getTitle());
         tvAuthor.setText(mThemeItem.getAuthor());
-        imageBanner.setImageDrawable(mThemeDataBinder.getThemeBanner(mThemeItem.getPackageName()));
-        new Thread(() -> {
-            mPreviewImages.addAll(mThemeDataBinder.getThemePreviewList(mThemeItem.getPackageName()));
-            runOnUiThread(() -> {
-                mPreviewImageAdapter.notifyDataSetChanged();
-                if (mPreviewImages.isEmpty()) {
-                    tvSeparatorPreview.setVisibility(View.GONE);
-                }
-            });
-        }).start();
+        request(mThemeDataBinder.getThemeBannerAsync(mThemeItem.getPackageName()), imageBanner::setImageDrawable);
+        loadPreviewImages();
 
         // wallpaper
         if (mThemeItem.hasWallpaper()) {
@@ -284,6 +288,50 @@ public class ThemePreviewActivity extends AppCompatActivity {
         mThemeTargetAdapter.notifyDataSetChanged();
     }
 
+    // runs the action on the UI thread unless the activity is destroyed first
+    private <T> void request(CompletableFuture<T> future, Consumer<T> action) {
+        mRequests.add(future.thenAcceptAsync(action, getMainExecutor()));
+    }
+
+    private void loadPreviewImages() {
+        final ThemeDataService.ThemeDataBinder binder = mThemeDataBinder;
+        final String packageName = mThemeItem.getPackageName();
+        final int height = getResources().getDimensionPixelSize(R.dimen.theme_preview_image_height);
+        final int width = height * getResources().getDisplayMetrics().widthPixels / getResources().getDisplayMetrics().heightPixels;
+        // list first, then decode each thumbnail and show it as soon as it's ready
+        request(binder.getThemePreviewNamesAsync(packageName), previewNames -> {
+            mPreviewNames.addAll(previewNames);
+            for (int i = 0; i < previewNames.size(); i++) mPreviewImages.add(null);
+            mPreviewImageAdapter.notifyDataSetChanged();
+            if (mPreviewNames.isEmpty()) {
+                tvSeparatorPreview.setVisibility(View.GONE);
+            }
+            for (int i = 0; i < previewNames.size(); i++) {
+                final int position = i;
+                request(binder.getThemePreviewImageAsync(packageName, previewNames.get(i), width, height), thumbnail -> {
+                    if (thumbnail == null) return;
+                    mPreviewImages.set(position, new BitmapDrawable(getResources(), thumbnail));
+                    mPreviewImageAdapter.notifyItemChanged(position);
+                });
+            }
+        });
+    }
+
+    private void showPreviewImage(int position) {
+        final String previewName = mPreviewNames.get(position);
+        final int width = getResources().getDisplayMetrics().widthPixels;
+        final int height = getResources().getDisplayMetrics().heightPixels;
+        mShownPreview = previewName;
+        // show the thumbnail until the full image is decoded
+        imagePreview.setImageDrawable(mPreviewImages.get(position));
+        imagePreview.setVisibility(View.VISIBLE);
+        request(mThemeDataBinder.getThemePreviewImageAsync(mThemeItem.getPackageName(), previewName, width, height), image -> {
+            if (image != null && previewName.equals(mShownPreview)) {
+                imagePreview.setImageBitmap(image);
+            }
+        });
+    }
+
     private void addThemeTarget(final String id, int type, int textId, boolean enabled) {
         ThemeTarget target = new ThemeTarget(id, type);
         target.setLabel(getString(textId));
@@ -312,12 +360,15 @@ public class ThemePreviewActivity extends AppCompatActivity {
         @Override
         public void onServiceConnected(ComponentName componentName, IBinder iBinder) {
             mThemeDataBinder = (ThemeDataService.ThemeDataBinder) iBinder;
-            if (mThemeDataBinder.isThemePackage(mThemePackageName)) {
-                mThemeItem = mThemeDataBinder.getThemeItem(mThemePackageName);
-                updateViewForTheme();
-            } else {
-                finish();
-            }
+            // the item is null if the package isn't a theme
+            request(mThemeDataBinder.getThemeItemAsync(mThemePackageName), theme -> {
+                if (theme != null) {
+                    mThemeItem = theme;
+                    updateViewForTheme();
+                } else {
+                    finish();
+                }
+            });
         }
 
         @Override
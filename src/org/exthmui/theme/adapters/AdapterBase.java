@@ -30,10 +30,10 @@ public abstract class AdapterBase<TH extends RecyclerView.ViewHolder> extends Re
     @Override
     public void onBindViewHolder(TH holder, int position) {
         if (onItemClickListener != null) {
-            holder.itemView.setOnClickListener(new ItemOnClickListener(position));
+            holder.itemView.setOnClickListener(new ItemOnClickListener(holder));
         }
         if (onItemLongClickListener != null) {
-            holder.itemView.setOnLongClickListener(new ItemOnLongClickListener(position));
+            holder.itemView.setOnLongClickListener(new ItemOnLongClickListener(holder));
         }
     }
 
@@ -54,27 +54,32 @@ public abstract class AdapterBase<TH extends RecyclerView.ViewHolder> extends Re
     }
 
     private class ItemOnClickListener implements View.OnClickListener {
-        private int position;
+        // items may move after binding, resolve the position on click
+        private RecyclerView.ViewHolder holder;
 
-        public ItemOnClickListener(int position) {
-            this.position = position;
+        public ItemOnClickListener(RecyclerView.ViewHolder holder) {
+            this.holder = holder;
         }
 
         @Override
         public void onClick(View v) {
+            int position = holder.getAdapterPosition();
+            if (position == RecyclerView.NO_POSITION) return;
             onItemClickListener.onItemClick(v, position);
         }
     }
 
     private class ItemOnLongClickListener implements View.OnLongClickListener {
-        private int position;
+        private RecyclerView.ViewHolder holder;
 
-        public ItemOnLongClickListener(int position) {
-            this.position = position;
+        public ItemOnLongClickListener(RecyclerView.ViewHolder holder) {
+            this.holder = holder;
         }
 
         @Override
         public boolean onLongClick(View v) {
+            int position = holder.getAdapterPosition();
+            if (position == RecyclerView.NO_POSITION) return false;
             return onItemLongClickListener.onItemLongClick(v, position);
         }
     }
@@ -16,7 +16,7 @@
 
 package org.exthmui.theme.adapters;
 
-import android.graphics.drawable.Drawable;
+import android.content.Context;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -29,18 +29,34 @@ import androidx.recyclerview.widget.RecyclerView;
 import org.exthmui.theme.R;
 import org.exthmui.theme.models.ThemeBase;
 import org.exthmui.theme.services.ThemeDataService;
+import org.exthmui.theme.utils.ThemeImageLoader;
 
 import java.util.List;
 
 public class ThemeBaseAdapter extends AdapterBase<ThemeBaseAdapter.ThemeViewHolder> {
-    private ThemeDataService.ThemeDataBinder mThemeDataBinder;
+    private Context mContext;
+    private ThemeImageLoader mImageLoader;
     private List<ThemeBase> mData;
-    public ThemeBaseAdapter(List<ThemeBase> data) {
+    public ThemeBaseAdapter(List<ThemeBase> data, Context context) {
+        mData = data;
+        mContext = context;
+    }
+
+    public void setData(List<ThemeBase> data) {
         mData = data;
     }
 
     public void setThemeDataBinder(ThemeDataService.ThemeDataBinder binder) {
-        mThemeDataBinder = binder;
+        if (mImageLoader != null) {
+            mImageLoader.shutdown();
+        }
+        mImageLoader = binder != null ? new ThemeImageLoader(mContext, binder) : null;
+    }
+
+    public void invalidateImage(String packageName) {
+        if (mImageLoader != null) {
+            mImageLoader.invalidate(packageName);
+        }
     }
 
     @NonNull
@@ -55,10 +71,17 @@ public class ThemeBaseAdapter extends AdapterBase<ThemeBaseAdapter.ThemeViewHold
         super.onBindViewHolder(holder, position);
         ThemeBase theme = mData.get(position);
         holder.mTitle.setText(theme.getTitle());
-        if (mThemeDataBinder != null) {
-            Drawable drawable =  mThemeDataBinder.getThemeImage(theme.getPackageName());
-            holder.mImage.setImageDrawable(drawable);
+        if (mImageLoader != null) {
+            mImageLoader.load(holder.mImage, theme.getPackageName());
+        }
+    }
+
+    @Override
+    public void onViewRecycled(@NonNull ThemeViewHolder holder) {
+        if (mImageLoader != null) {
+            mImageLoader.cancel(holder.mImage);
         }
+        super.onViewRecycled(holder);
     }
 
     @Override
@@ -35,7 +35,9 @@ import androidx.recyclerview.widget.RecyclerView;
 import org.exthmui.theme.R;
 import org.exthmui.theme.models.ThemeTarget;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class ThemeTargetAdapter extends AdapterBase<RecyclerView.ViewHolder> {
 
@@ -46,6 +48,7 @@ public class ThemeTargetAdapter extends AdapterBase<RecyclerView.ViewHolder> {
 
     private Context mContext;
     private List<ThemeTarget> targetList;
+    private Map<String, Integer> mIconResIds = new HashMap<>();
 
     public ThemeTargetAdapter(List<ThemeTarget> data, Context context) {
         targetList = data;
@@ -88,11 +91,7 @@ public class ThemeTargetAdapter extends AdapterBase<RecyclerView.ViewHolder> {
                 viewHolder.mId.setVisibility(View.VISIBLE);
                 changeIconColor = false;
             } else {
-                int resourceId = mContext.getResources().getIdentifier("ic_" + target.getTargetId().replace(".", "_"), "drawable", mContext.getPackageName());
-                if (resourceId == 0) {
-                    resourceId = R.drawable.ic_theme_target_others;
-                }
-                viewHolder.mIcon.setImageResource(resourceId);
+                viewHolder.mIcon.setImageResource(getIconResId(target.getTargetId()));
             }
             if (!target.isSwitchable()) {
                 parseStyle(viewHolder, R.style.theme_target_disabled, changeIconColor);
@@ -134,6 +133,18 @@ public class ThemeTargetAdapter extends AdapterBase<RecyclerView.ViewHolder> {
         });
     }
 
+    private int getIconResId(String targetId) {
+        Integer resourceId = mIconResIds.get(targetId);
+        if (resourceId == null) {
+            resourceId = mContext.getResources().getIdentifier("ic_" + targetId.replace(".", "_"), "drawable", mContext.getPackageName());
+            if (resourceId == 0) {
+                resourceId = R.drawable.ic_theme_target_others;
+            }
+            mIconResIds.put(targetId, resourceId);
+        }
+        return resourceId;
+    }
+
     private void parseStyle(TargetViewHolder holder, @StyleRes int styleId, boolean changeIconColor) {
         Drawable background = new ContextThemeWrapper(mContext, styleId).getDrawable(R.drawable.theme_target_background);
         TypedArray array = mContext.obtainStyledAttributes(styleId, R.styleable.themeTarget);
@@ -28,6 +28,7 @@ public class Constants {
     // DATA
     public final static String THEME_DATA_BOOTANIMATION_PATH = "/data/theme/media/";
     public final static String THEME_DATA_FONTS_PATH = "/data/theme/fonts/";
+    public final static String THEME_DATA_MANIFEST_PATH = "/data/theme/manifest";
 
     // fonts
     public final static String FAKE_FONTS_OVERLAY = "org.exthmui.theme.fakefonts";
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2019-2020 The exTHmUI Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.exthmui.theme.misc;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.om.IOverlayManager;
+import android.content.om.OverlayInfo;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.os.SystemProperties;
+import android.util.Log;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Refreshes the system font cache by toggling the fake-fonts overlay. Each
+ * toggle waits for the overlay manager's change broadcast for the overlay's
+ * target instead of a fixed delay, with a timeout in case it never arrives.
+ * Refreshes are serialized.
+ */
+public class FontRefreshCoordinator {
+
+    private static final String TAG = "FontRefreshCoordinator";
+
+    private static final long OVERLAY_CHANGE_TIMEOUT_MS = 3000;
+    // targetPackage of fakefonts/AndroidManifest.xml
+    private static final String FAKE_FONTS_TARGET = "android";
+
+    private final Context mContext;
+    private final IOverlayManager mOverlayService;
+
+    public FontRefreshCoordinator(Context context, IOverlayManager overlayService) {
+        mContext = context;
+        mOverlayService = overlayService;
+    }
+
+    public synchronized boolean refresh(int userId) {
+        SystemProperties.set(Constants.PROP_REFRESH_FONTS, "true");
+        return setFakeFontsEnabled(true, userId) && setFakeFontsEnabled(false, userId);
+    }
+
+    private boolean setFakeFontsEnabled(boolean enabled, int userId) {
+        // the change broadcast names the overlay's target package, not the overlay itself
+        final String targetPackage = getFakeFontsTarget(userId);
+        final Semaphore changed = new Semaphore(0);
+        BroadcastReceiver receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (intent.getData() != null &&
+                        targetPackage.equals(intent.getData().getSchemeSpecificPart())) {
+                    changed.release();
+                }
+            }
+        };
+        IntentFilter filter = new IntentFilter(Intent.ACTION_OVERLAY_CHANGED);
+        filter.addDataScheme("package");
+        mContext.registerReceiver(receiver, filter);
+        try {
+            // false means the state didn't change, no broadcast will follow
+            if (!mOverlayService.setEnabled(Constants.FAKE_FONTS_OVERLAY, enabled, userId)) return true;
+            // other overlays of the same target send this broadcast too, wait for one after our change
+            long deadline = SystemClock.uptimeMillis() + OVERLAY_CHANGE_TIMEOUT_MS;
+            do {
+                long remaining = deadline - SystemClock.uptimeMillis();
+                if (remaining <= 0 || !changed.tryAcquire(remaining, TimeUnit.MILLISECONDS)) {
+                    Log.w(TAG, "Timed out waiting for fake fonts overlay, enabled=" + enabled);
+                    break;
+                }
+            } while (isFakeFontsEnabled(userId) != enabled);
+        } catch (RemoteException | InterruptedException e) {
+            Log.e(TAG, "Failed to toggle fake fonts overlay", e);
+            return false;
+        } finally {
+            mContext.unregisterReceiver(receiver);
+        }
+        return true;
+    }
+
+    private String getFakeFontsTarget(int userId) {
+        try {
+            OverlayInfo info = mOverlayService.getOverlayInfo(Constants.FAKE_FONTS_OVERLAY, userId);
+            if (info != null) return info.targetPackageName;
+        } catch (RemoteException e) {
+            Log.w(TAG, "Failed to query fake fonts overlay", e);
+        }
+        return FAKE_FONTS_TARGET;
+    }
+
+    private boolean isFakeFontsEnabled(int userId) throws RemoteException {
+        OverlayInfo info = mOverlayService.getOverlayInfo(Constants.FAKE_FONTS_OVERLAY, userId);
+        return info != null && info.isEnabled();
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2019-2020 The exTHmUI Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.exthmui.theme.misc;
+
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import org.exthmui.theme.models.ThemeTarget;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Resolves overlay targets without per-target IPC. Installed packages are
+ * fetched in one bulk call and labels are kept per locale and package
+ * version in memory and on disk.
+ */
+public class OverlayTargetResolver {
+
+    private static final String TAG = "OverlayTargetResolver";
+
+    private static final int LABELS_VERSION = 1;
+
+    private final PackageManager mPackageManager;
+    private final AtomicFile mLabelsFile;
+    private final Map<String, Label> mLabels = new HashMap<>();
+    private Map<String, PackageInfo> mInstalledPackages;
+    private String mLocale;
+    private boolean mDirty;
+
+    public OverlayTargetResolver(PackageManager packageManager, File labelsFile, String locale) {
+        mPackageManager = packageManager;
+        mLabelsFile = new AtomicFile(labelsFile);
+        mLocale = locale;
+        load();
+    }
+
+    public synchronized ThemeTarget resolve(String packageName) {
+        if (mInstalledPackages == null) {
+            setInstalledPackages(mPackageManager.getInstalledPackages(0));
+        }
+        PackageInfo pkgInfo = mInstalledPackages.get(packageName);
+        if (pkgInfo == null) return null;
+
+        ThemeTarget overlayTarget = new ThemeTarget(packageName, ThemeTarget.TYPE_APPLICATIONS);
+        overlayTarget.setLabel(getLabel(pkgInfo));
+        return overlayTarget;
+    }
+
+    public synchronized void setInstalledPackages(List<PackageInfo> packages) {
+        mInstalledPackages = new HashMap<>(packages.size());
+        for (PackageInfo pkgInfo : packages) {
+            mInstalledPackages.put(pkgInfo.packageName, pkgInfo);
+        }
+    }
+
+    public synchronized void setLocale(String locale) {
+        if (locale.equals(mLocale)) return;
+        mLocale = locale;
+        mLabels.clear();
+        mDirty = true;
+    }
+
+    public synchronized void invalidate(String packageName) {
+        mInstalledPackages = null;
+        if (mLabels.remove(packageName) != null) mDirty = true;
+    }
+
+    public synchronized void save() {
+        if (!mDirty) return;
+        FileOutputStream fos = null;
+        try {
+            fos = mLabelsFile.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(LABELS_VERSION);
+            out.writeUTF(mLocale);
+            out.writeInt(mLabels.size());
+            for (Map.Entry<String, Label> entry : mLabels.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue().lastUpdateTime);
+                out.writeUTF(entry.getValue().label);
+            }
+            out.flush();
+            mLabelsFile.finishWrite(fos);
+            mDirty = false;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to save target labels", e);
+            mLabelsFile.failWrite(fos);
+        }
+    }
+
+    private void load() {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(mLabelsFile.openRead()))) {
+            if (in.readInt() != LABELS_VERSION || !mLocale.equals(in.readUTF())) return;
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String packageName = in.readUTF();
+                long lastUpdateTime = in.readLong();
+                mLabels.put(packageName, new Label(lastUpdateTime, in.readUTF()));
+            }
+        } catch (FileNotFoundException e) {
+            // first run
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to load target labels", e);
+            mLabels.clear();
+        }
+    }
+
+    private String getLabel(PackageInfo pkgInfo) {
+        Label label = mLabels.get(pkgInfo.packageName);
+        if (label == null || label.lastUpdateTime != pkgInfo.lastUpdateTime) {
+            label = new Label(pkgInfo.lastUpdateTime, pkgInfo.applicationInfo.loadLabel(mPackageManager).toString());
+            mLabels.put(pkgInfo.packageName, label);
+            mDirty = true;
+        }
+        return label.label;
+    }
+
+    private static class Label {
+        final long lastUpdateTime;
+        final String label;
+
+        Label(long lastUpdateTime, String label) {
+            this.lastUpdateTime = lastUpdateTime;
+            this.label = label;
+        }
+    }
+}
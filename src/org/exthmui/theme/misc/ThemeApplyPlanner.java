@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2019-2020 The exTHmUI Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.exthmui.theme.misc;
+
+import android.os.Bundle;
+
+import org.exthmui.theme.models.ThemeItem;
+import org.exthmui.theme.models.ThemeTarget;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Computes the minimal set of changes between the recorded apply state and
+ * a theme with its selected targets. Slots whose source is unchanged and
+ * still in place on the system are skipped.
+ */
+public class ThemeApplyPlanner {
+
+    // overlay slots are the target package prefixed with this
+    public static final String OVERLAY_SLOT_PREFIX = "overlay/";
+
+    // cleared when the new theme doesn't provide or the user didn't select them,
+    // the other non-overlay slots are left alone then
+    private static final String[] EXCLUSIVE_SLOTS = {
+            Constants.THEME_TARGET_BOOTANIMATION,
+            Constants.THEME_TARGET_FONTS
+    };
+
+    public interface Probe {
+        // whether the result described by the record is still in place
+        boolean isInPlace(String slot, ThemeApplyState.Record record);
+    }
+
+    public static Plan plan(ThemeApplyState state, ThemeItem theme, long themeVersion, Bundle bundle,
+                            boolean wallpaperCenter, Probe probe) {
+        String themeKey = theme.getPackageName() + "@" + themeVersion;
+        Map<String, String> sources = new LinkedHashMap<>();
+        if (theme.hasWallpaper() && isSelected(bundle, Constants.THEME_TARGET_WALLPAPER)) {
+            sources.put(Constants.THEME_TARGET_WALLPAPER, themeKey + "/" + theme.getWallpaper() + (wallpaperCenter ? "#center" : ""));
+        }
+        if (theme.hasLockScreen() && isSelected(bundle, Constants.THEME_TARGET_LOCKSCREEN)) {
+            sources.put(Constants.THEME_TARGET_LOCKSCREEN, themeKey + "/" + theme.getLockScreen());
+        }
+        if (theme.hasRingtone() && isSelected(bundle, Constants.THEME_TARGET_RINGTONE)) {
+            sources.put(Constants.THEME_TARGET_RINGTONE, themeKey + "/" + theme.getRingtone());
+        }
+        if (theme.hasAlarmSound() && isSelected(bundle, Constants.THEME_TARGET_ALARM)) {
+            sources.put(Constants.THEME_TARGET_ALARM, themeKey + "/" + theme.getAlarmSound());
+        }
+        if (theme.hasNotificationSound() && isSelected(bundle, Constants.THEME_TARGET_NOTIFICATION)) {
+            sources.put(Constants.THEME_TARGET_NOTIFICATION, themeKey + "/" + theme.getNotificationSound());
+        }
+        if (theme.hasBootanimation && isSelected(bundle, Constants.THEME_TARGET_BOOTANIMATION)) {
+            sources.put(Constants.THEME_TARGET_BOOTANIMATION, themeKey);
+        }
+        if (theme.hasFonts && isSelected(bundle, Constants.THEME_TARGET_FONTS)) {
+            sources.put(Constants.THEME_TARGET_FONTS, themeKey);
+        }
+        for (ThemeTarget ovt : theme.getOverlayTargets()) {
+            if (isSelected(bundle, ovt.getTargetId())) {
+                sources.put(OVERLAY_SLOT_PREFIX + ovt.getTargetId(), themeKey);
+            }
+        }
+
+        // without a recorded state nothing can be skipped
+        Plan plan = new Plan(!state.isKnown(), sources);
+        for (Map.Entry<String, String> source : sources.entrySet()) {
+            ThemeApplyState.Record record = state.get(source.getKey());
+            if (plan.fullApply || record == null || !record.source.equals(source.getValue()) ||
+                    !probe.isInPlace(source.getKey(), record)) {
+                plan.apply.add(source.getKey());
+            }
+        }
+        for (String slot : EXCLUSIVE_SLOTS) {
+            if (!sources.containsKey(slot) && (plan.fullApply || state.get(slot) != null)) {
+                plan.remove.add(slot);
+            }
+        }
+        for (String slot : state.getSlots()) {
+            if (isOverlaySlot(slot) && !sources.containsKey(slot)) {
+                plan.remove.add(slot);
+            }
+        }
+        return plan;
+    }
+
+    public static boolean isOverlaySlot(String slot) {
+        return slot.startsWith(OVERLAY_SLOT_PREFIX);
+    }
+
+    public static String getOverlayTarget(String slot) {
+        return slot.substring(OVERLAY_SLOT_PREFIX.length());
+    }
+
+    private static boolean isSelected(Bundle bundle, String targetId) {
+        return bundle.getBoolean(targetId, true);
+    }
+
+    public static class Plan {
+        // the state is unknown, every stage runs and old overlays are found by scanning packages
+        public final boolean fullApply;
+        private final Map<String, String> mSources;
+        private final List<String> apply = new ArrayList<>();
+        private final List<String> remove = new ArrayList<>();
+
+        Plan(boolean fullApply, Map<String, String> sources) {
+            this.fullApply = fullApply;
+            mSources = sources;
+        }
+
+        public boolean needsApply(String slot) {
+            return apply.contains(slot);
+        }
+
+        public boolean needsRemove(String slot) {
+            return remove.contains(slot);
+        }
+
+        public String getSource(String slot) {
+            return mSources.get(slot);
+        }
+
+        public List<String> getAppliedSlots() {
+            return Collections.unmodifiableList(apply);
+        }
+
+        public List<String> getRemovedSlots() {
+            return Collections.unmodifiableList(remove);
+        }
+
+        // overlay target packages to install and enable
+        public List<String> getAppliedOverlayTargets() {
+            List<String> targets = new ArrayList<>();
+            for (String slot : apply) {
+                if (isOverlaySlot(slot)) targets.add(getOverlayTarget(slot));
+            }
+            return targets;
+        }
+
+        public boolean needsFontRefresh() {
+            return needsApply(Constants.THEME_TARGET_FONTS) || needsRemove(Constants.THEME_TARGET_FONTS);
+        }
+
+        public boolean isEmpty() {
+            return apply.isEmpty() && remove.isEmpty() && !fullApply;
+        }
+
+        @Override
+        public String toString() {
+            return "Plan{fullApply=" + fullApply + ", apply=" + apply + ", remove=" + remove +
+                    ", refreshFonts=" + needsFontRefresh() + "}";
+        }
+    }
+}
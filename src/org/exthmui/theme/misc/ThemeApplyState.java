@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2019-2020 The exTHmUI Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.exthmui.theme.misc;
+
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What the last applies left on the system, one record per slot. A slot is a
+ * theme target such as the wallpaper or an overlay target. The source says
+ * what was applied, the token identifies the result on the system side
+ * (wallpaper id, ringtone uri, overlay package) so outside changes are noticed.
+ */
+public class ThemeApplyState {
+
+    private static final String TAG = "ThemeApplyState";
+
+    private static final int STATE_VERSION = 2;
+
+    private final AtomicFile mFile;
+    private final Map<String, Record> mRecords = new HashMap<>();
+    private boolean mKnown;
+    private boolean mDirty;
+
+    public ThemeApplyState(File file) {
+        mFile = new AtomicFile(file);
+    }
+
+    public synchronized void load() {
+        mRecords.clear();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(mFile.openRead()))) {
+            if (in.readInt() != STATE_VERSION) return;
+            mKnown = in.readBoolean();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String slot = in.readUTF();
+                mRecords.put(slot, new Record(in.readUTF(), in.readUTF()));
+            }
+        } catch (FileNotFoundException e) {
+            // nothing applied yet
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to load apply state", e);
+            mRecords.clear();
+            mKnown = false;
+        }
+    }
+
+    public synchronized void save() {
+        if (!mDirty) return;
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(STATE_VERSION);
+            out.writeBoolean(mKnown);
+            out.writeInt(mRecords.size());
+            for (Map.Entry<String, Record> entry : mRecords.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeUTF(entry.getValue().source);
+                out.writeUTF(entry.getValue().token);
+            }
+            out.flush();
+            mFile.finishWrite(fos);
+            mDirty = false;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to save apply state", e);
+            mFile.failWrite(fos);
+        }
+    }
+
+    // false until a full apply finished, records alone don't tell what earlier
+    // applies left on the system
+    public synchronized boolean isKnown() {
+        return mKnown;
+    }
+
+    public synchronized void setKnown() {
+        if (mKnown) return;
+        mKnown = true;
+        mDirty = true;
+    }
+
+    public synchronized Record get(String slot) {
+        return mRecords.get(slot);
+    }
+
+    public synchronized List<String> getSlots() {
+        return new ArrayList<>(mRecords.keySet());
+    }
+
+    public synchronized void put(String slot, String source, String token) {
+        mRecords.put(slot, new Record(source, token != null ? token : ""));
+        mDirty = true;
+    }
+
+    public synchronized void remove(String slot) {
+        mRecords.remove(slot);
+        mDirty = true;
+    }
+
+    public static class Record {
+        public final String source;
+        public final String token;
+
+        Record(String source, String token) {
+            this.source = source;
+            this.token = token;
+        }
+    }
+}
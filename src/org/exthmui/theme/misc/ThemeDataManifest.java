@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2019-2020 The exTHmUI Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.exthmui.theme.misc;
+
+import android.content.res.AssetManager;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import org.exthmui.theme.utils.FileUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Digests of the files deployed to /data/theme, keyed by path. A file is only
+ * copied when its asset differs from what was deployed, and is then written
+ * next to the target and renamed over it so readers never see a partial file.
+ * Files with the same content as another deployed file can be linked to it.
+ */
+public class ThemeDataManifest {
+
+    private static final String TAG = "ThemeDataManifest";
+
+    private static final int MANIFEST_VERSION = 1;
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final AtomicFile mFile;
+    private final Map<String, String> mDigests = new HashMap<>();
+    private boolean mDirty;
+
+    public ThemeDataManifest(File file) {
+        mFile = new AtomicFile(file);
+    }
+
+    public synchronized void load() {
+        mDigests.clear();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(mFile.openRead()))) {
+            if (in.readInt() != MANIFEST_VERSION) return;
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                mDigests.put(path, in.readUTF());
+            }
+        } catch (FileNotFoundException e) {
+            // nothing deployed yet
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to load manifest", e);
+            mDigests.clear();
+        }
+    }
+
+    public synchronized void save() {
+        if (!mDirty) return;
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MANIFEST_VERSION);
+            out.writeInt(mDigests.size());
+            for (Map.Entry<String, String> entry : mDigests.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeUTF(entry.getValue());
+            }
+            out.flush();
+            mFile.finishWrite(fos);
+            mDirty = false;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to save manifest", e);
+            mFile.failWrite(fos);
+        }
+    }
+
+    // returns true when the target was written, false when it already had this content
+    public boolean deploy(AssetManager assetManager, String assetPath, File target) throws IOException {
+        String digest;
+        try (InputStream is = assetManager.open(assetPath)) {
+            digest = FileUtil.digest(is);
+        }
+        return deploy(assetManager, assetPath, target, digest);
+    }
+
+    // like deploy, but a missing asset or one with the same content as source becomes a link to source
+    public boolean deployOrLink(AssetManager assetManager, String assetPath, File target, File source) throws IOException {
+        String digest;
+        try (InputStream is = assetManager.open(assetPath)) {
+            digest = FileUtil.digest(is);
+        } catch (FileNotFoundException e) {
+            return link(source, target);
+        }
+        if (digest.equals(getDigest(source))) return link(source, target);
+        return deploy(assetManager, assetPath, target, digest);
+    }
+
+    private boolean deploy(AssetManager assetManager, String assetPath, File target, String digest) throws IOException {
+        // a symlink may point at a file that changed since, only trust regular files
+        if (isRegularFile(target) && digest.equals(getDigest(target))) return false;
+
+        File temp = new File(target.getPath() + TEMP_SUFFIX);
+        FileUtil.saveAsset(assetManager, assetPath, temp.getAbsolutePath(), true);
+        try {
+            Os.rename(temp.getAbsolutePath(), target.getAbsolutePath());
+        } catch (ErrnoException e) {
+            temp.delete();
+            throw e.rethrowAsIOException();
+        }
+        putDigest(target, digest);
+        return true;
+    }
+
+    // hard links target to the deployed source, falls back to a symlink where hard links
+    // aren't possible. returns false when target already is source
+    public boolean link(File source, File target) throws IOException {
+        if (isSameFile(source, target)) return false;
+
+        File temp = new File(target.getPath() + TEMP_SUFFIX);
+        temp.delete();
+        try {
+            try {
+                Os.link(source.getAbsolutePath(), temp.getAbsolutePath());
+            } catch (ErrnoException e) {
+                Log.w(TAG, "Failed to hard link " + target + ", using a symlink: " + e.getMessage());
+                Os.symlink(source.getAbsolutePath(), temp.getAbsolutePath());
+            }
+            Os.rename(temp.getAbsolutePath(), target.getAbsolutePath());
+        } catch (ErrnoException e) {
+            temp.delete();
+            throw e.rethrowAsIOException();
+        }
+        putDigest(target, getDigest(source));
+        return true;
+    }
+
+    // returns true when the target existed
+    public boolean delete(File target) {
+        putDigest(target, null);
+        return target.delete();
+    }
+
+    // deletes the files in dir not named in names, returns true when any was deleted
+    public boolean retainFiles(File dir, Set<String> names) {
+        File[] files = dir.listFiles();
+        if (files == null) return false;
+        boolean changed = false;
+        for (File file : files) {
+            if (!names.contains(file.getName())) changed |= delete(file);
+        }
+        return changed;
+    }
+
+    private static boolean isRegularFile(File file) {
+        try {
+            return OsConstants.S_ISREG(Os.lstat(file.getAbsolutePath()).st_mode);
+        } catch (ErrnoException e) {
+            return false;
+        }
+    }
+
+    // stat follows symlinks, so this holds for hard links and symlinks to source
+    private static boolean isSameFile(File source, File target) {
+        try {
+            StructStat sourceStat = Os.stat(source.getAbsolutePath());
+            StructStat targetStat = Os.stat(target.getAbsolutePath());
+            return sourceStat.st_dev == targetStat.st_dev && sourceStat.st_ino == targetStat.st_ino;
+        } catch (ErrnoException e) {
+            return false;
+        }
+    }
+
+    private synchronized String getDigest(File target) {
+        return mDigests.get(target.getAbsolutePath());
+    }
+
+    private synchronized void putDigest(File target, String digest) {
+        if (digest != null) {
+            mDigests.put(target.getAbsolutePath(), digest);
+        } else if (mDigests.remove(target.getAbsolutePath()) == null) {
+            return;
+        }
+        mDirty = true;
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2019-2020 The exTHmUI Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.exthmui.theme.misc;
+
+import org.exthmui.theme.models.ThemeItem;
+import org.exthmui.theme.models.ThemeTarget;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Single-pass parser for theme_data.xml. Sections and their elements are
+ * looked up in static tables, tag names are compared case-insensitively in
+ * place so nothing is allocated per element besides the model objects.
+ */
+public class ThemeDataParser {
+
+    private static final String TAG = "ThemeDataParser";
+
+    private static final int NONE = -1;
+
+    private static final int SECTION_OVERLAY = 0;
+    private static final int SECTION_SOUNDS = 1;
+    private static final int SECTION_BACKGROUNDS = 2;
+
+    private static final String[] SECTIONS = {
+            Constants.THEME_DATA_XML_OVERLAY,
+            Constants.THEME_DATA_XML_SOUNDS,
+            Constants.THEME_DATA_XML_BACKGROUNDS
+    };
+
+    private static final int ELEMENT_TARGET = 0;
+    private static final int ELEMENT_RINGTONE = 0;
+    private static final int ELEMENT_ALARM = 1;
+    private static final int ELEMENT_NOTIFICATION = 2;
+    private static final int ELEMENT_WALLPAPER = 0;
+    private static final int ELEMENT_LOCKSCREEN = 1;
+
+    // elements of each section, indexed by section id
+    private static final String[][] ELEMENTS = {
+            {Constants.THEME_DATA_XML_OVERLAY_TARGET},
+            {Constants.THEME_DATA_XML_SOUND_RINGTONE, Constants.THEME_DATA_XML_SOUND_ALARM, Constants.THEME_DATA_XML_SOUND_NOTIFICATION},
+            {Constants.THEME_DATA_XML_BACKGROUND_WALLPAPER, Constants.THEME_DATA_XML_BACKGROUND_LOCKSCREEN}
+    };
+
+    public interface TargetResolver {
+        // returns null when the target should be skipped
+        ThemeTarget resolve(String packageName);
+    }
+
+    private final TargetResolver mTargetResolver;
+    private final WallpaperSelector mWallpaperSelector;
+
+    // wallpaperSelector may be null when backgrounds aren't needed
+    public ThemeDataParser(TargetResolver targetResolver, WallpaperSelector wallpaperSelector) {
+        mTargetResolver = targetResolver;
+        mWallpaperSelector = wallpaperSelector;
+    }
+
+    public void parse(XmlPullParser xml, ThemeItem theme, List<ThemeTarget> overlayTargets) throws XmlPullParserException, IOException {
+        int section = NONE;
+        int sectionDepth = 0;
+        int element = NONE;
+
+        // attributes of the current element
+        boolean switchable = true;
+        String title = null;
+        double ratioWidth = -1, ratioHeight = -1;
+
+        // background variants, indexed by element id
+        List<List<WallpaperSelector.Variant>> backgrounds = new ArrayList<>(2);
+        backgrounds.add(new ArrayList<>());
+        backgrounds.add(new ArrayList<>());
+
+        int eventType = xml.getEventType();
+        while (eventType != XmlPullParser.END_DOCUMENT) {
+            switch (eventType) {
+                case XmlPullParser.START_TAG:
+                    if (section == NONE) {
+                        section = lookup(SECTIONS, xml.getName());
+                        sectionDepth = xml.getDepth();
+                        element = NONE;
+                    } else if (xml.getDepth() == sectionDepth + 1) {
+                        element = lookup(ELEMENTS[section], xml.getName());
+                        switch (section) {
+                            case SECTION_OVERLAY:
+                                String value = xml.getAttributeValue(null, Constants.THEME_DATA_XML_OVERLAY_TARGET_ATTR_SWITCHABLE);
+                                switchable = value == null || !"false".equalsIgnoreCase(value);
+                                break;
+                            case SECTION_SOUNDS:
+                                title = xml.getAttributeValue(null, Constants.THEME_DATA_XML_SOUND_TITLE);
+                                break;
+                            case SECTION_BACKGROUNDS:
+                                ratioWidth = parseRatio(xml.getAttributeValue(null, Constants.THEME_DATA_XML_BACKGROUND_RATIO_WIDTH));
+                                ratioHeight = parseRatio(xml.getAttributeValue(null, Constants.THEME_DATA_XML_BACKGROUND_RATIO_HEIGHT));
+                                break;
+                        }
+                    } else {
+                        element = NONE;
+                    }
+                    break;
+                case XmlPullParser.TEXT:
+                    if (element == NONE) break;
+                    String text = xml.getText().trim();
+                    if (text.isEmpty()) break;
+                    switch (section) {
+                        case SECTION_OVERLAY:
+                            ThemeTarget overlayTarget = mTargetResolver.resolve(text);
+                            if (overlayTarget != null) {
+                                overlayTarget.setSwitchable(switchable);
+                                overlayTargets.add(overlayTarget);
+                            }
+                            break;
+                        case SECTION_SOUNDS:
+                            parseSound(theme, element, text, title);
+                            break;
+                        case SECTION_BACKGROUNDS:
+                            backgrounds.get(element).add(new WallpaperSelector.Variant(text, ratioWidth, ratioHeight));
+                            break;
+                    }
+                    break;
+                case XmlPullParser.END_TAG:
+                    element = NONE;
+                    if (section != NONE && xml.getDepth() == sectionDepth) {
+                        section = NONE;
+                    }
+                    break;
+            }
+            eventType = xml.next();
+        }
+
+        if (mWallpaperSelector != null) {
+            theme.setWallpaper(mWallpaperSelector.select(backgrounds.get(ELEMENT_WALLPAPER)));
+            theme.setLockScreen(mWallpaperSelector.select(backgrounds.get(ELEMENT_LOCKSCREEN)));
+        }
+    }
+
+    private void parseSound(ThemeItem theme, int element, String file, String title) {
+        switch (element) {
+            case ELEMENT_RINGTONE:
+                theme.setRingtone(file);
+                theme.setRingtoneTitle(title);
+                break;
+            case ELEMENT_ALARM:
+                theme.setAlarmSound(file);
+                theme.setAlarmTitle(title);
+                break;
+            case ELEMENT_NOTIFICATION:
+                theme.setNotificationSound(file);
+                theme.setNotificationTitle(title);
+                break;
+        }
+    }
+
+    private static int lookup(String[] table, String name) {
+        for (int i = 0; i < table.length; i++) {
+            if (table[i].equalsIgnoreCase(name)) return i;
+        }
+        return NONE;
+    }
+
+    private static double parseRatio(String value) {
+        if (value == null) return -1;
+        try {
+            float ratio = Float.parseFloat(value);
+            return Float.isFinite(ratio) ? ratio : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
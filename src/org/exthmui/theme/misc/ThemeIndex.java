@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2019-2020 The exTHmUI Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.exthmui.theme.misc;
+
+import android.content.pm.PackageInfo;
+import android.content.res.Resources;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import org.exthmui.theme.models.ThemeBase;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * On-disk index of inspected packages, keyed by package name and
+ * lastUpdateTime/versionCode. Packages whose key is unchanged since the
+ * last scan don't need to be inspected again. A reverse index from overlay
+ * target to themes is kept in memory alongside the entries.
+ */
+public class ThemeIndex {
+
+    private static final String TAG = "ThemeIndex";
+
+    private static final int INDEX_VERSION = 3;
+
+    // resource ids resolved once per package version, see resolveResIds()
+    public static final int RES_TITLE = 0;
+    public static final int RES_AUTHOR = 1;
+    public static final int RES_IMAGE = 2;
+    public static final int RES_BANNER = 3;
+    public static final int RES_HAS_BOOTANIM = 4;
+    public static final int RES_HAS_FONTS = 5;
+    public static final int RES_XML = 6;
+
+    private static final String[][] RES_NAMES = {
+            {Constants.THEME_DATA_TITLE, "string"},
+            {Constants.THEME_DATA_AUTHOR, "string"},
+            {Constants.THEME_DATA_IMAGE, "drawable"},
+            {Constants.THEME_DATA_BANNER, "drawable"},
+            {Constants.THEME_DATA_HAS_BOOTANIM, "bool"},
+            {Constants.THEME_DATA_HAS_FONTS, "bool"},
+            {Constants.THEME_DATA_XML_FILE, "xml"}
+    };
+
+    private final AtomicFile mFile;
+    private final Map<String, Entry> mEntries = new LinkedHashMap<>();
+    private final Map<String, Set<String>> mTargetThemes = new HashMap<>();
+    private final String mLocale;
+    private boolean mDirty;
+
+    public ThemeIndex(File file, String locale) {
+        mFile = new AtomicFile(file);
+        mLocale = locale;
+    }
+
+    public synchronized void load() {
+        mEntries.clear();
+        mTargetThemes.clear();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(mFile.openRead()))) {
+            if (in.readInt() != INDEX_VERSION) {
+                mDirty = true;
+                return;
+            }
+            // theme titles and authors are localized, drop them when locale changed
+            boolean localeChanged = !mLocale.equals(in.readUTF());
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Entry entry = Entry.read(in);
+                if (localeChanged && entry.isTheme) continue;
+                mEntries.put(entry.packageName, entry);
+                addTargets(entry);
+            }
+            mDirty = localeChanged;
+        } catch (FileNotFoundException e) {
+            mDirty = true;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to load theme index", e);
+            mEntries.clear();
+            mTargetThemes.clear();
+            mDirty = true;
+        }
+    }
+
+    public synchronized void save() {
+        if (!mDirty) return;
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(INDEX_VERSION);
+            out.writeUTF(mLocale);
+            out.writeInt(mEntries.size());
+            for (Entry entry : mEntries.values()) {
+                entry.write(out);
+            }
+            out.flush();
+            mFile.finishWrite(fos);
+            mDirty = false;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to save theme index", e);
+            mFile.failWrite(fos);
+        }
+    }
+
+    public synchronized Entry get(String packageName) {
+        return mEntries.get(packageName);
+    }
+
+    public synchronized void put(Entry entry) {
+        removeTargets(mEntries.put(entry.packageName, entry));
+        addTargets(entry);
+        mDirty = true;
+    }
+
+    public synchronized void remove(String packageName) {
+        Entry entry = mEntries.remove(packageName);
+        if (entry == null) return;
+        removeTargets(entry);
+        mDirty = true;
+    }
+
+    // returns true when any entry was dropped
+    public synchronized boolean retainAll(Collection<String> packageNames) {
+        boolean removed = false;
+        Iterator<Entry> iterator = mEntries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (packageNames.contains(entry.packageName)) continue;
+            iterator.remove();
+            removeTargets(entry);
+            removed = true;
+            mDirty = true;
+        }
+        return removed;
+    }
+
+    // themes with an overlay for the target package, in index order
+    public synchronized List<String> getThemesForTarget(String targetPackage) {
+        Set<String> themes = mTargetThemes.get(targetPackage);
+        return themes != null ? new ArrayList<>(themes) : new ArrayList<>();
+    }
+
+    public synchronized List<String> getTargets() {
+        return new ArrayList<>(mTargetThemes.keySet());
+    }
+
+    private void addTargets(Entry entry) {
+        if (!entry.isTheme) return;
+        for (String target : entry.targets) {
+            mTargetThemes.computeIfAbsent(target, k -> new LinkedHashSet<>()).add(entry.packageName);
+        }
+    }
+
+    private void removeTargets(Entry entry) {
+        if (entry == null || !entry.isTheme) return;
+        for (String target : entry.targets) {
+            Set<String> themes = mTargetThemes.get(target);
+            if (themes == null) continue;
+            themes.remove(entry.packageName);
+            if (themes.isEmpty()) mTargetThemes.remove(target);
+        }
+    }
+
+    public synchronized List<Entry> getThemeEntries() {
+        List<Entry> list = new ArrayList<>();
+        for (Entry entry : mEntries.values()) {
+            if (entry.isTheme) list.add(entry);
+        }
+        return list;
+    }
+
+    public synchronized List<ThemeBase> getThemeBaseList() {
+        List<ThemeBase> list = new ArrayList<>();
+        for (Entry entry : mEntries.values()) {
+            if (entry.isTheme) list.add(entry.toThemeBase());
+        }
+        return list;
+    }
+
+    public static int[] resolveResIds(Resources resources, String packageName) {
+        int[] resIds = new int[RES_NAMES.length];
+        for (int i = 0; i < RES_NAMES.length; i++) {
+            resIds[i] = resources.getIdentifier(RES_NAMES[i][0], RES_NAMES[i][1], packageName);
+        }
+        return resIds;
+    }
+
+    public static class Entry {
+        public final String packageName;
+        public final long lastUpdateTime;
+        public final long versionCode;
+        public boolean isTheme;
+        public String title;
+        public String author;
+        public boolean removable;
+        public int[] resIds;
+        // overlay target packages declared in theme_data.xml
+        public String[] targets = new String[0];
+
+        public Entry(PackageInfo pkgInfo) {
+            this(pkgInfo.packageName, pkgInfo.lastUpdateTime, pkgInfo.getLongVersionCode());
+        }
+
+        private Entry(String packageName, long lastUpdateTime, long versionCode) {
+            this.packageName = packageName;
+            this.lastUpdateTime = lastUpdateTime;
+            this.versionCode = versionCode;
+        }
+
+        public boolean matches(PackageInfo pkgInfo) {
+            return lastUpdateTime == pkgInfo.lastUpdateTime && versionCode == pkgInfo.getLongVersionCode();
+        }
+
+        public ThemeBase toThemeBase() {
+            ThemeBase themeBase = new ThemeBase(packageName);
+            themeBase.setTitle(title);
+            themeBase.setAuthor(author);
+            themeBase.setRemovable(removable);
+            return themeBase;
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            out.writeUTF(packageName);
+            out.writeLong(lastUpdateTime);
+            out.writeLong(versionCode);
+            out.writeBoolean(isTheme);
+            if (isTheme) {
+                writeString(out, title);
+                writeString(out, author);
+                out.writeBoolean(removable);
+                out.writeInt(resIds != null ? resIds.length : 0);
+                if (resIds != null) {
+                    for (int resId : resIds) out.writeInt(resId);
+                }
+                out.writeInt(targets.length);
+                for (String target : targets) out.writeUTF(target);
+            }
+        }
+
+        private static Entry read(DataInputStream in) throws IOException {
+            Entry entry = new Entry(in.readUTF(), in.readLong(), in.readLong());
+            entry.isTheme = in.readBoolean();
+            if (entry.isTheme) {
+                entry.title = readString(in);
+                entry.author = readString(in);
+                entry.removable = in.readBoolean();
+                int resCount = in.readInt();
+                if (resCount == RES_NAMES.length) {
+                    entry.resIds = new int[resCount];
+                    for (int i = 0; i < resCount; i++) entry.resIds[i] = in.readInt();
+                } else {
+                    in.skipBytes(resCount * 4);
+                }
+                entry.targets = new String[in.readInt()];
+                for (int i = 0; i < entry.targets.length; i++) entry.targets[i] = in.readUTF();
+            }
+            return entry;
+        }
+    }
+
+    static void writeString(DataOutputStream out, String str) throws IOException {
+        out.writeBoolean(str != null);
+        if (str != null) out.writeUTF(str);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
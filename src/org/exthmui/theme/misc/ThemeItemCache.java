@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2019-2020 The exTHmUI Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.exthmui.theme.misc;
+
+import android.util.AtomicFile;
+import android.util.Log;
+
+import org.exthmui.theme.models.ThemeItem;
+import org.exthmui.theme.models.ThemeTarget;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary cache of parsed theme_data.xml, one file per theme. Each file
+ * starts with a key built from the package version and everything else the
+ * parse result depends on, a mismatching key is a cache miss.
+ */
+public class ThemeItemCache {
+
+    private static final String TAG = "ThemeItemCache";
+
+    private static final int CACHE_VERSION = 2;
+
+    private final File mDir;
+
+    public ThemeItemCache(File dir) {
+        mDir = dir;
+    }
+
+    public ThemeItem load(String packageName, String key) {
+        byte[] data;
+        try {
+            data = new AtomicFile(new File(mDir, packageName)).readFully();
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read cache of " + packageName, e);
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            return read(in, packageName, key);
+        } catch (IOException e) {
+            Log.e(TAG, "Invalid cache of " + packageName, e);
+            return null;
+        }
+    }
+
+    public void save(ThemeItem theme, String key) {
+        if (!mDir.exists() && !mDir.mkdirs()) return;
+        AtomicFile file = new AtomicFile(new File(mDir, theme.getPackageName()));
+        FileOutputStream fos = null;
+        try {
+            fos = file.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            write(out, theme, key);
+            out.flush();
+            file.finishWrite(fos);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to save cache of " + theme.getPackageName(), e);
+            file.failWrite(fos);
+        }
+    }
+
+    public void remove(String packageName) {
+        new AtomicFile(new File(mDir, packageName)).delete();
+    }
+
+    public void clear() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) file.delete();
+        }
+    }
+
+    // returns null when the cache was written for another key
+    static ThemeItem read(DataInputStream in, String packageName, String key) throws IOException {
+        if (in.readInt() != CACHE_VERSION || !key.equals(in.readUTF())) return null;
+        ThemeItem theme = new ThemeItem(packageName);
+        theme.setTitle(ThemeIndex.readString(in));
+        theme.setAuthor(ThemeIndex.readString(in));
+        theme.setRemovable(in.readBoolean());
+        theme.setWallpaper(ThemeIndex.readString(in));
+        theme.setLockScreen(ThemeIndex.readString(in));
+        theme.setRingtone(ThemeIndex.readString(in));
+        theme.setRingtoneTitle(ThemeIndex.readString(in));
+        theme.setAlarmSound(ThemeIndex.readString(in));
+        theme.setAlarmTitle(ThemeIndex.readString(in));
+        theme.setNotificationSound(ThemeIndex.readString(in));
+        theme.setNotificationTitle(ThemeIndex.readString(in));
+        theme.hasBootanimation = in.readBoolean();
+        theme.hasFonts = in.readBoolean();
+        int targetCount = in.readInt();
+        List<ThemeTarget> overlayTargets = new ArrayList<>(targetCount);
+        for (int i = 0; i < targetCount; i++) {
+            ThemeTarget target = new ThemeTarget(in.readUTF(), ThemeTarget.TYPE_APPLICATIONS);
+            target.setLabel(ThemeIndex.readString(in));
+            target.setSwitchable(in.readBoolean());
+            overlayTargets.add(target);
+        }
+        theme.setOverlayTargets(overlayTargets);
+        return theme;
+    }
+
+    static void write(DataOutputStream out, ThemeItem theme, String key) throws IOException {
+        out.writeInt(CACHE_VERSION);
+        out.writeUTF(key);
+        ThemeIndex.writeString(out, theme.getTitle());
+        ThemeIndex.writeString(out, theme.getAuthor());
+        out.writeBoolean(theme.isRemovable());
+        ThemeIndex.writeString(out, theme.getWallpaper());
+        ThemeIndex.writeString(out, theme.getLockScreen());
+        ThemeIndex.writeString(out, theme.getRingtone());
+        ThemeIndex.writeString(out, theme.getRingtoneTitle());
+        ThemeIndex.writeString(out, theme.getAlarmSound());
+        ThemeIndex.writeString(out, theme.getAlarmTitle());
+        ThemeIndex.writeString(out, theme.getNotificationSound());
+        ThemeIndex.writeString(out, theme.getNotificationTitle());
+        out.writeBoolean(theme.hasBootanimation);
+        out.writeBoolean(theme.hasFonts);
+        List<ThemeTarget> overlayTargets = theme.getOverlayTargets();
+        out.writeInt(overlayTargets.size());
+        for (ThemeTarget target : overlayTargets) {
+            out.writeUTF(target.getTargetId());
+            ThemeIndex.writeString(out, target.getLabel());
+            out.writeBoolean(target.isSwitchable());
+        }
+    }
+}
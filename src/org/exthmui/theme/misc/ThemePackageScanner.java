@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2019-2020 The exTHmUI Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.exthmui.theme.misc;
+
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.Bundle;
+
+import java.util.List;
+
+/**
+ * Finds the packages changed since the last scan with a single package
+ * manager call. The theme flag and version of every package come back in
+ * one bulk query and are compared against the index, so nothing is queried
+ * per package.
+ */
+public class ThemePackageScanner {
+
+    public static class Item {
+        public final PackageInfo pkgInfo;
+        // the indexed entry, null when the package is new
+        public final ThemeIndex.Entry entry;
+        public final boolean changed;
+        public final boolean isTheme;
+
+        Item(PackageInfo pkgInfo, ThemeIndex.Entry entry, boolean changed, boolean isTheme) {
+            this.pkgInfo = pkgInfo;
+            this.entry = entry;
+            this.changed = changed;
+            this.isTheme = isTheme;
+        }
+    }
+
+    private final PackageManager mPackageManager;
+    private final ThemeIndex mThemeIndex;
+
+    public ThemePackageScanner(PackageManager packageManager, ThemeIndex themeIndex) {
+        mPackageManager = packageManager;
+        mThemeIndex = themeIndex;
+    }
+
+    // adds packages changed since they were indexed and unchanged themes to outItems
+    // in package manager order, returns all installed packages
+    public List<PackageInfo> scan(List<Item> outItems) {
+        List<PackageInfo> allPackages = mPackageManager.getInstalledPackages(PackageManager.GET_META_DATA);
+        for (PackageInfo pkgInfo : allPackages) {
+            ThemeIndex.Entry entry = mThemeIndex.get(pkgInfo.packageName);
+            if (entry == null || !entry.matches(pkgInfo)) {
+                outItems.add(new Item(pkgInfo, entry, true, isThemeApplication(pkgInfo.applicationInfo)));
+            } else if (entry.isTheme) {
+                outItems.add(new Item(pkgInfo, entry, false, true));
+            }
+        }
+        return allPackages;
+    }
+
+    public static boolean isThemeApplication(ApplicationInfo ai) {
+        if (ai == null) return false;
+        Bundle metadata = ai.metaData;
+        return metadata != null && metadata.getBoolean(Constants.THEME_DATA_FLAG, false);
+    }
+}
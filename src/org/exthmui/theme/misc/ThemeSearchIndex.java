@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2019-2020 The exTHmUI Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.exthmui.theme.misc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory n-gram index over theme titles, authors and overlay target labels.
+ * Every 1 to 3 character substring of a field maps to the themes containing it,
+ * so a query token is looked up directly or as the intersection of its
+ * trigrams. Candidates are then verified and ranked by field and by whether
+ * the token starts a word.
+ */
+public class ThemeSearchIndex {
+
+    private static final int GRAM_SIZE = 3;
+
+    private static final int FIELD_TITLE = 0;
+    private static final int FIELD_AUTHOR = 1;
+    private static final int FIELD_TARGETS = 2;
+
+    // score of a match, indexed by field id
+    private static final int[] FIELD_WEIGHTS = {6, 3, 1};
+
+    private final Map<String, Document> mDocuments = new HashMap<>();
+    private final Map<String, Set<Document>> mGrams = new HashMap<>();
+
+    public synchronized void put(String packageName, String title, String author, List<String> targetLabels) {
+        remove(packageName);
+        String[] fields = new String[3];
+        fields[FIELD_TITLE] = normalize(title);
+        fields[FIELD_AUTHOR] = normalize(author);
+        // newline never appears in a query token, so matches can't span labels
+        fields[FIELD_TARGETS] = normalize(String.join("\n", targetLabels));
+        Document document = new Document(packageName, title, fields);
+
+        for (String field : fields) {
+            for (int n = 1; n <= GRAM_SIZE; n++) {
+                for (int i = 0; i + n <= field.length(); i++) {
+                    document.grams.add(field.substring(i, i + n));
+                }
+            }
+        }
+        for (String gram : document.grams) {
+            mGrams.computeIfAbsent(gram, k -> new HashSet<>()).add(document);
+        }
+        mDocuments.put(packageName, document);
+    }
+
+    public synchronized void remove(String packageName) {
+        Document document = mDocuments.remove(packageName);
+        if (document == null) return;
+        for (String gram : document.grams) {
+            Set<Document> documents = mGrams.get(gram);
+            if (documents == null) continue;
+            documents.remove(document);
+            if (documents.isEmpty()) mGrams.remove(gram);
+        }
+    }
+
+    public synchronized void retainAll(Set<String> packageNames) {
+        for (String packageName : new ArrayList<>(mDocuments.keySet())) {
+            if (!packageNames.contains(packageName)) remove(packageName);
+        }
+    }
+
+    // returns package names of matching themes, best match first
+    public synchronized List<String> search(String query) {
+        String[] tokens = normalize(query).trim().split("\\s+");
+        if (tokens.length == 0 || tokens[0].isEmpty()) return Collections.emptyList();
+
+        Set<Document> candidates = null;
+        for (String token : tokens) {
+            candidates = intersect(candidates, lookup(token));
+            if (candidates.isEmpty()) return Collections.emptyList();
+        }
+
+        List<Document> matches = new ArrayList<>();
+        for (Document document : candidates) {
+            document.score = score(document, tokens);
+            if (document.score > 0) matches.add(document);
+        }
+        matches.sort((a, b) -> {
+            if (a.score != b.score) return Integer.compare(b.score, a.score);
+            return a.title.compareToIgnoreCase(b.title);
+        });
+
+        List<String> result = new ArrayList<>(matches.size());
+        for (Document document : matches) {
+            result.add(document.packageName);
+        }
+        return result;
+    }
+
+    private Set<Document> lookup(String token) {
+        if (token.length() <= GRAM_SIZE) {
+            Set<Document> documents = mGrams.get(token);
+            return documents != null ? documents : Collections.emptySet();
+        }
+        Set<Document> documents = null;
+        for (int i = 0; i + GRAM_SIZE <= token.length(); i++) {
+            Set<Document> gramDocuments = mGrams.get(token.substring(i, i + GRAM_SIZE));
+            if (gramDocuments == null) return Collections.emptySet();
+            documents = intersect(documents, gramDocuments);
+        }
+        return documents;
+    }
+
+    private static Set<Document> intersect(Set<Document> a, Set<Document> b) {
+        if (a == null) return b;
+        Set<Document> smaller = a.size() < b.size() ? a : b;
+        Set<Document> larger = smaller == a ? b : a;
+        Set<Document> result = new HashSet<>();
+        for (Document document : smaller) {
+            if (larger.contains(document)) result.add(document);
+        }
+        return result;
+    }
+
+    // 0 if a token isn't actually contained, trigrams may match in different places
+    private static int score(Document document, String[] tokens) {
+        int total = 0;
+        for (String token : tokens) {
+            int best = 0;
+            for (int field = 0; field < document.fields.length; field++) {
+                String text = document.fields[field];
+                int index = text.indexOf(token);
+                if (index == -1) continue;
+                int score = FIELD_WEIGHTS[field];
+                if (index == 0) {
+                    score *= 3;
+                } else if (!Character.isLetterOrDigit(text.charAt(index - 1))) {
+                    score *= 2;
+                }
+                best = Math.max(best, score);
+            }
+            if (best == 0) return 0;
+            total += best;
+        }
+        return total;
+    }
+
+    private static String normalize(String text) {
+        return text == null ? "" : text.toLowerCase(Locale.ROOT);
+    }
+
+    private static class Document {
+        final String packageName;
+        final String title;
+        final String[] fields;
+        final Set<String> grams = new HashSet<>();
+        int score;
+
+        Document(String packageName, String title, String[] fields) {
+            this.packageName = packageName;
+            this.title = title != null ? title : packageName;
+            this.fields = fields;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2019-2020 The exTHmUI Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.exthmui.theme.misc;
+
+import java.util.List;
+
+/**
+ * Picks the wallpaper or lockscreen variant that fits the display best.
+ * Variants are scored by how far their aspect ratio is from the display's
+ * and by how much they would have to be upscaled, the lowest score wins
+ * and ties go to the first variant in theme_data.xml.
+ */
+public class WallpaperSelector {
+
+    // used when neither ratio attributes nor image bounds are known
+    private static final double UNKNOWN_RATIO_SCORE = 0.5;
+    private static final double UPSCALE_WEIGHT = 0.5;
+    private static final double DOWNSCALE_WEIGHT = 0.01;
+
+    public interface BoundsDecoder {
+        // fills outSize with width and height, returns false when unknown
+        boolean decodeBounds(String file, int[] outSize);
+    }
+
+    public static class Variant {
+        final String file;
+        final double ratioWidth;
+        final double ratioHeight;
+
+        public Variant(String file, double ratioWidth, double ratioHeight) {
+            this.file = file;
+            this.ratioWidth = ratioWidth;
+            this.ratioHeight = ratioHeight;
+        }
+    }
+
+    private final int mDisplayWidth;
+    private final int mDisplayHeight;
+    private final BoundsDecoder mBoundsDecoder;
+
+    public WallpaperSelector(int displayWidth, int displayHeight, BoundsDecoder boundsDecoder) {
+        mDisplayWidth = displayWidth;
+        mDisplayHeight = displayHeight;
+        mBoundsDecoder = boundsDecoder;
+    }
+
+    public String select(List<Variant> variants) {
+        if (variants.isEmpty()) return null;
+        if (variants.size() == 1) return variants.get(0).file;
+
+        String best = null;
+        double bestScore = Double.MAX_VALUE;
+        int[] size = new int[2];
+        for (Variant variant : variants) {
+            double score = score(variant, size);
+            if (score < bestScore) {
+                bestScore = score;
+                best = variant.file;
+            }
+        }
+        return best;
+    }
+
+    private double score(Variant variant, int[] size) {
+        boolean hasBounds = mBoundsDecoder != null && mBoundsDecoder.decodeBounds(variant.file, size)
+                && size[0] > 0 && size[1] > 0;
+        double displayRatio = (double) mDisplayWidth / mDisplayHeight;
+
+        double score;
+        if (variant.ratioWidth > 0 && variant.ratioHeight > 0) {
+            score = Math.abs(Math.log((variant.ratioWidth / variant.ratioHeight) / displayRatio));
+        } else if (hasBounds) {
+            score = Math.abs(Math.log(((double) size[0] / size[1]) / displayRatio));
+        } else {
+            score = UNKNOWN_RATIO_SCORE;
+        }
+
+        if (hasBounds) {
+            // scale needed to cover the display
+            double scale = Math.max((double) mDisplayWidth / size[0], (double) mDisplayHeight / size[1]);
+            if (scale > 1) {
+                score += UPSCALE_WEIGHT * Math.log(scale);
+            } else {
+                score += DOWNSCALE_WEIGHT * -Math.log(scale);
+            }
+        }
+        return score;
+    }
+}
@@ -17,37 +17,84 @@
 package org.exthmui.theme.services;
 
 import android.app.Service;
+import android.content.BroadcastReceiver;
+import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.res.AssetManager;
 import android.content.res.Resources;
 import android.content.res.XmlResourceParser;
+import android.graphics.Bitmap;
 import android.graphics.drawable.Drawable;
 import android.os.Binder;
-import android.os.Bundle;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.util.DisplayMetrics;
 import android.util.Log;
 
 import org.exthmui.theme.misc.Constants;
+import org.exthmui.theme.misc.OverlayTargetResolver;
+import org.exthmui.theme.misc.ThemeDataParser;
+import org.exthmui.theme.misc.ThemeIndex;
+import org.exthmui.theme.misc.ThemeItemCache;
+import org.exthmui.theme.misc.ThemePackageScanner;
+import org.exthmui.theme.misc.ThemeSearchIndex;
+import org.exthmui.theme.misc.WallpaperSelector;
 import org.exthmui.theme.models.ThemeBase;
 import org.exthmui.theme.models.ThemeItem;
 import org.exthmui.theme.models.ThemeTarget;
-import org.xmlpull.v1.XmlPullParserException;
+import org.exthmui.theme.utils.BitmapUtil;
+import org.exthmui.theme.utils.ResourcesCache;
 
-import java.io.IOException;
-import java.io.InputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 public class ThemeDataService extends Service {
 
     private final static String TAG = "ThemeDataService";
 
+    private final static String THEME_INDEX_FILE = "theme_index";
+    private final static String THUMBNAIL_DIR = "thumbnails";
+    private final static String THEME_ITEM_CACHE_DIR = "theme_items";
+    private final static String TARGET_LABELS_FILE = "target_labels";
+
+    private final static int PAGE_SIZE = 12;
+    private final static long PAGE_INTERVAL_MS = 200;
+
     private PackageManager mPackageManager;
     private List<ThemeBase> mThemeBaseList;
+    private ThemeIndex mThemeIndex;
+    private ThemePackageScanner mPackageScanner;
+    private File mThumbnailDir;
+    private ThemeItemCache mThemeItemCache;
+    private OverlayTargetResolver mTargetResolver;
+    private List<ThemeListListener> mThemeListListenerList;
+    private ExecutorService mPackageEventExecutor;
+    private ExecutorService mThemeInfoExecutor;
+    private ConcurrentHashMap<String, CompletableFuture<?>> mPendingRequests;
+    private ThemeSearchIndex mSearchIndex;
+    private BroadcastReceiver mPackageReceiver;
 
     @Override
     public IBinder onBind(Intent intent) {
@@ -57,7 +104,55 @@ public class ThemeDataService extends Service {
     @Override
     public void onCreate() {
         mPackageManager = getPackageManager();
-        mThemeBaseList = new ArrayList<>();
+        mThemeBaseList = new Vector<>();
+
+        // render from the index until the first scan is done
+        mThemeIndex = new ThemeIndex(new File(getFilesDir(), THEME_INDEX_FILE),
+                getResources().getConfiguration().getLocales().toLanguageTags());
+        mThemeIndex.load();
+        mThemeBaseList.addAll(mThemeIndex.getThemeBaseList());
+        mPackageScanner = new ThemePackageScanner(mPackageManager, mThemeIndex);
+        mThumbnailDir = new File(getCacheDir(), THUMBNAIL_DIR);
+        mThemeItemCache = new ThemeItemCache(new File(getCacheDir(), THEME_ITEM_CACHE_DIR));
+        mTargetResolver = new OverlayTargetResolver(mPackageManager, new File(getCacheDir(), TARGET_LABELS_FILE),
+                getResources().getConfiguration().getLocales().toLanguageTags());
+
+        mThemeListListenerList = new Vector<>();
+        mPackageEventExecutor = Executors.newSingleThreadExecutor();
+        mThemeInfoExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        mPendingRequests = new ConcurrentHashMap<>();
+        mSearchIndex = new ThemeSearchIndex();
+        // target labels may need the package manager, build off the main thread
+        mPackageEventExecutor.execute(() -> {
+            for (ThemeIndex.Entry entry : mThemeIndex.getThemeEntries()) IIndexTheme(entry);
+            mTargetResolver.save();
+        });
+        mPackageReceiver = new PackageReceiver();
+        IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addDataScheme("package");
+        registerReceiver(mPackageReceiver, packageFilter);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        ResourcesCache.trimMemory(level);
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("Themes: " + mThemeBaseList.size());
+        writer.println("Resources cache: " + ResourcesCache.dump());
+    }
+
+    @Override
+    public void onDestroy() {
+        unregisterReceiver(mPackageReceiver);
+        mPackageEventExecutor.shutdown();
+        mThemeInfoExecutor.shutdown();
+        super.onDestroy();
     }
 
     public class ThemeDataBinder extends Binder {
@@ -81,25 +176,296 @@ public class ThemeDataService extends Service {
             return IGetThemeImage(packageName);
         }
 
+        public Bitmap getThemeThumbnail(String packageName, int width, int height) {
+            return IGetThemeThumbnail(packageName, width, height);
+        }
+
         public Drawable getThemeBanner(String packageName) {
             return IGetThemeBanner(packageName);
         }
 
-        public List<Drawable> getThemePreviewList(String packageName) {
-            return IGetThemePreviewList(packageName);
+        public List<String> getThemePreviewNames(String packageName) {
+            return IGetThemePreviewNames(packageName);
+        }
+
+        public Bitmap getThemePreviewImage(String packageName, String previewName, int width, int height) {
+            return IGetThemePreviewImage(packageName, previewName, width, height);
+        }
+
+        // async variants run on the service's worker pool, identical requests in flight share one result.
+        // deliver on a chosen executor with thenAcceptAsync, cancelling a returned future only detaches the caller
+
+        public CompletableFuture<ThemeItem> getThemeItemAsync(String packageName) {
+            return ISubmitRequest("item:" + packageName, () -> IGetThemeItem(packageName));
+        }
+
+        public CompletableFuture<Drawable> getThemeBannerAsync(String packageName) {
+            return ISubmitRequest("banner:" + packageName, () -> IGetThemeBanner(packageName));
+        }
+
+        public CompletableFuture<List<String>> getThemePreviewNamesAsync(String packageName) {
+            return ISubmitRequest("previews:" + packageName, () -> IGetThemePreviewNames(packageName));
+        }
+
+        public CompletableFuture<Bitmap> getThemePreviewImageAsync(String packageName, String previewName, int width, int height) {
+            return ISubmitRequest("preview:" + packageName + "/" + previewName + ":" + width + "x" + height,
+                    () -> IGetThemePreviewImage(packageName, previewName, width, height));
+        }
+
+        // package names of themes matching the query, best match first
+        public List<String> searchThemes(String query) {
+            return mSearchIndex.search(query);
+        }
+
+        // themes shipping an overlay for the target package, from the index without parsing
+        public List<String> getThemesForTarget(String targetPackage) {
+            return mThemeIndex.getThemesForTarget(targetPackage);
+        }
+
+        public List<ThemeTarget> getOverlayTargets() {
+            return IGetOverlayTargets();
+        }
+
+        public void addThemeListListener(ThemeListListener listener) {
+            mThemeListListenerList.add(listener);
+        }
+
+        public void removeThemeListListener(ThemeListListener listener) {
+            mThemeListListenerList.remove(listener);
         }
     }
 
-    private void IUpdateThemeList() {
-        List<PackageInfo> allPackages = mPackageManager.getInstalledPackages(0);
-        mThemeBaseList.clear();
+    public interface ThemeListListener {
+        // called on a worker thread after mThemeBaseList was patched
+        void onThemeAdded(ThemeBase theme);
+        void onThemeChanged(ThemeBase theme);
+        void onThemeRemoved(String packageName);
+        // a page of themes added or changed during a refresh
+        void onThemesLoaded(List<ThemeBase> themes);
+        // the whole list once a refresh is done, in the order of getThemeBaseList()
+        void onThemeListLoaded(List<ThemeBase> themes);
+    }
+
+    private class PackageReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (intent.getData() == null) return;
+            String packageName = intent.getData().getSchemeSpecificPart();
+            boolean replacing = intent.getBooleanExtra(Intent.EXTRA_REPLACING, false);
+            String action = intent.getAction();
+            if (Intent.ACTION_PACKAGE_REPLACED.equals(action) || !replacing) {
+                // an update sends REMOVED and ADDED with EXTRA_REPLACING before REPLACED
+                final boolean removed = Intent.ACTION_PACKAGE_REMOVED.equals(action);
+                mPackageEventExecutor.execute(() -> IUpdateThemePackage(packageName, removed));
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> CompletableFuture<T> ISubmitRequest(String key, Supplier<T> supplier) {
+        CompletableFuture<T> future = (CompletableFuture<T>) mPendingRequests.computeIfAbsent(key,
+                k -> CompletableFuture.supplyAsync(supplier, mThemeInfoExecutor));
+        future.whenComplete((result, e) -> mPendingRequests.remove(key, future));
+        // each caller gets its own stage so cancelling it doesn't affect the others
+        return future.thenApply(result -> result);
+    }
 
+    private void IUpdateThemeList() {
+        List<ThemePackageScanner.Item> items = new ArrayList<>();
+        List<PackageInfo> allPackages = mPackageScanner.scan(items);
+        List<ThemeBase> themeBaseList = new ArrayList<>();
+        Set<String> installedPackages = new HashSet<>();
         for (PackageInfo pkgInfo : allPackages) {
-            if (IsThemePackage(pkgInfo.packageName)) {
-                ThemeBase themeBase = new ThemeBase(pkgInfo.packageName);
-                IGetThemeBaseInfo(themeBase);
+            installedPackages.add(pkgInfo.packageName);
+        }
+
+        List<Future<ThemeIndex.Entry>> themeEntries = new ArrayList<>();
+        CompletionService<ThemeIndex.Entry> completionService = new ExecutorCompletionService<>(mThemeInfoExecutor);
+        int pending = 0;
+        boolean packagesChanged = false;
+
+        for (ThemePackageScanner.Item item : items) {
+            if (item.changed) {
+                // only inspect packages changed since the last scan
+                packagesChanged = true;
+                final PackageInfo pkgInfo = item.pkgInfo;
+                final ThemeIndex.Entry newEntry = new ThemeIndex.Entry(pkgInfo);
+                if (item.entry != null && item.entry.isTheme) IClearThumbnails(pkgInfo.packageName);
+                if (item.isTheme) {
+                    themeEntries.add(completionService.submit(() -> {
+                        IGetThemeBaseInfo(newEntry, pkgInfo);
+                        return newEntry;
+                    }));
+                    pending++;
+                } else {
+                    mThemeIndex.put(newEntry);
+                }
+            } else {
+                themeEntries.add(CompletableFuture.completedFuture(item.entry));
+            }
+        }
+
+        // stream themes to clients in pages, a page is sent once full or after
+        // PAGE_INTERVAL_MS so the first themes show up no matter how many are pending
+        try {
+            List<ThemeBase> page = new ArrayList<>(PAGE_SIZE);
+            long pageDeadline = SystemClock.uptimeMillis() + PAGE_INTERVAL_MS;
+            int received = 0;
+            while (received < pending) {
+                long timeout = Math.max(pageDeadline - SystemClock.uptimeMillis(), 0);
+                Future<ThemeIndex.Entry> future = completionService.poll(timeout, TimeUnit.MILLISECONDS);
+                if (future != null) {
+                    ThemeIndex.Entry entry = future.get();
+                    ThemeBase themeBase = entry.toThemeBase();
+                    received++;
+                    mThemeIndex.put(entry);
+                    IIndexTheme(entry);
+                    IPatchThemeList(entry.packageName, themeBase);
+                    page.add(themeBase);
+                }
+                if (future == null || page.size() >= PAGE_SIZE) {
+                    IPublishThemePage(page);
+                    page = new ArrayList<>(PAGE_SIZE);
+                    pageDeadline = SystemClock.uptimeMillis() + PAGE_INTERVAL_MS;
+                }
+            }
+            IPublishThemePage(page);
+            // merge in discovery order so the result doesn't depend on scheduling
+            for (Future<ThemeIndex.Entry> future : themeEntries) {
+                themeBaseList.add(future.get().toThemeBase());
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            Log.e(TAG, "Failed to update theme list", e);
+            return;
+        }
+        packagesChanged |= mThemeIndex.retainAll(installedPackages);
+        mThemeIndex.save();
+        // package events are only seen while the service runs, cached themes may
+        // list targets installed or removed since
+        if (packagesChanged) mThemeItemCache.clear();
+        mSearchIndex.retainAll(installedPackages);
+        mTargetResolver.setInstalledPackages(allPackages);
+        mTargetResolver.save();
+
+        // themes uninstalled while the service wasn't running
+        Set<String> themePackages = new HashSet<>();
+        for (ThemeBase themeBase : themeBaseList) {
+            themePackages.add(themeBase.getPackageName());
+        }
+        List<String> removedThemes = new ArrayList<>();
+        synchronized (mThemeBaseList) {
+            for (ThemeBase themeBase : mThemeBaseList) {
+                if (!themePackages.contains(themeBase.getPackageName())) {
+                    removedThemes.add(themeBase.getPackageName());
+                }
+            }
+            mThemeBaseList.clear();
+            mThemeBaseList.addAll(themeBaseList);
+        }
+        for (String packageName : removedThemes) {
+            for (ThemeListListener listener : mThemeListListenerList) {
+                listener.onThemeRemoved(packageName);
+            }
+        }
+        // pages arrive in completion order, this gives clients the merged order
+        List<ThemeBase> themes = Collections.unmodifiableList(themeBaseList);
+        for (ThemeListListener listener : mThemeListListenerList) {
+            listener.onThemeListLoaded(themes);
+        }
+    }
+
+    private void IUpdateThemePackage(String packageName, boolean removed) {
+        ThemeBase themeBase = null;
+        ResourcesCache.invalidate(packageName);
+        IClearThumbnails(packageName);
+        // cached themes skip targets that aren't installed and hold target labels
+        mThemeItemCache.clear();
+        mTargetResolver.invalidate(packageName);
+        if (removed) {
+            mThemeIndex.remove(packageName);
+            mSearchIndex.remove(packageName);
+        } else {
+            try {
+                PackageInfo pkgInfo = mPackageManager.getPackageInfo(packageName, PackageManager.GET_META_DATA);
+                ThemeIndex.Entry entry = new ThemeIndex.Entry(pkgInfo);
+                if (ThemePackageScanner.isThemeApplication(pkgInfo.applicationInfo)) {
+                    IGetThemeBaseInfo(entry, pkgInfo);
+                    themeBase = entry.toThemeBase();
+                }
+                mThemeIndex.put(entry);
+                IIndexTheme(entry);
+            } catch (PackageManager.NameNotFoundException e) {
+                mThemeIndex.remove(packageName);
+                mSearchIndex.remove(packageName);
+            }
+        }
+        mThemeIndex.save();
+        IPublishTheme(packageName, themeBase);
+    }
+
+    // installed apps styled by at least one theme, sorted by label
+    private List<ThemeTarget> IGetOverlayTargets() {
+        List<ThemeTarget> overlayTargets = new ArrayList<>();
+        for (String target : mThemeIndex.getTargets()) {
+            ThemeTarget overlayTarget = mTargetResolver.resolve(target);
+            if (overlayTarget != null) overlayTargets.add(overlayTarget);
+        }
+        mTargetResolver.save();
+        overlayTargets.sort((a, b) -> a.getLabel().compareToIgnoreCase(b.getLabel()));
+        return overlayTargets;
+    }
+
+    private void IIndexTheme(ThemeIndex.Entry entry) {
+        if (!entry.isTheme) {
+            mSearchIndex.remove(entry.packageName);
+            return;
+        }
+        List<String> targetLabels = new ArrayList<>(entry.targets.length);
+        for (String target : entry.targets) {
+            ThemeTarget overlayTarget = mTargetResolver.resolve(target);
+            if (overlayTarget != null) targetLabels.add(overlayTarget.getLabel());
+        }
+        mSearchIndex.put(entry.packageName, entry.title, entry.author, targetLabels);
+    }
+
+    private void IPublishTheme(String packageName, ThemeBase themeBase) {
+        boolean existed = IPatchThemeList(packageName, themeBase);
+        for (ThemeListListener listener : mThemeListListenerList) {
+            if (themeBase == null) {
+                if (existed) listener.onThemeRemoved(packageName);
+            } else if (existed) {
+                listener.onThemeChanged(themeBase);
+            } else {
+                listener.onThemeAdded(themeBase);
+            }
+        }
+    }
+
+    private void IPublishThemePage(List<ThemeBase> page) {
+        if (page.isEmpty()) return;
+        List<ThemeBase> themes = Collections.unmodifiableList(page);
+        for (ThemeListListener listener : mThemeListListenerList) {
+            listener.onThemesLoaded(themes);
+        }
+    }
+
+    // returns whether the package was in the list before
+    private boolean IPatchThemeList(String packageName, ThemeBase themeBase) {
+        synchronized (mThemeBaseList) {
+            for (int i = 0; i < mThemeBaseList.size(); i++) {
+                if (mThemeBaseList.get(i).getPackageName().equals(packageName)) {
+                    if (themeBase != null) {
+                        mThemeBaseList.set(i, themeBase);
+                    } else {
+                        mThemeBaseList.remove(i);
+                    }
+                    return true;
+                }
+            }
+            if (themeBase != null) {
                 mThemeBaseList.add(themeBase);
             }
+            return false;
         }
     }
 
@@ -107,10 +473,7 @@ public class ThemeDataService extends Service {
         boolean ret = false;
         try {
             ApplicationInfo ai = mPackageManager.getApplicationInfo(packageName, PackageManager.GET_META_DATA);
-            Bundle metadata = ai.metaData;
-            if (metadata != null) {
-                ret = metadata.getBoolean(Constants.THEME_DATA_FLAG,false);
-            }
+            ret = ThemePackageScanner.isThemeApplication(ai);
         } catch (Exception e) {
             Log.e(TAG, "check package " + packageName + " failed");
         }
@@ -119,9 +482,10 @@ public class ThemeDataService extends Service {
 
     private Drawable IGetThemeBanner(String packageName) {
         try {
-            Resources resources = mPackageManager.getResourcesForApplication(packageName);
-            int bannerResId = resources.getIdentifier(Constants.THEME_DATA_BANNER, "drawable", packageName);
-            return resources.getDrawable(bannerResId, null);
+            PackageInfo pkgInfo = IGetThemePackageInfo(packageName);
+            ThemeIndex.Entry entry = IGetThemeEntry(pkgInfo);
+            Resources resources = ResourcesCache.get(mPackageManager, pkgInfo);
+            return resources.getDrawable(entry.resIds[ThemeIndex.RES_BANNER], null);
         } catch (Exception e) {
             Log.e(TAG, "Failed to get banner of " + packageName);
         }
@@ -130,29 +494,53 @@ public class ThemeDataService extends Service {
 
     private Drawable IGetThemeImage(String packageName) {
         try {
-            Resources resources = mPackageManager.getResourcesForApplication(packageName);
-            int imageResId = resources.getIdentifier(Constants.THEME_DATA_IMAGE, "drawable", packageName);
-            return resources.getDrawable(imageResId, null);
+            PackageInfo pkgInfo = IGetThemePackageInfo(packageName);
+            ThemeIndex.Entry entry = IGetThemeEntry(pkgInfo);
+            Resources resources = ResourcesCache.get(mPackageManager, pkgInfo);
+            return resources.getDrawable(entry.resIds[ThemeIndex.RES_IMAGE], null);
         } catch (Exception e) {
             Log.e(TAG, "Failed to get image of " + packageName);
         }
         return null;
     }
 
-    private List<Drawable> IGetThemePreviewList(String packageName) {
-        List<Drawable> previewList = new ArrayList<>();
-
+    private Bitmap IGetThemeThumbnail(String packageName, int width, int height) {
         try {
-            Resources resources = mPackageManager.getResourcesForApplication(packageName);
-            AssetManager assetManager = resources.getAssets();
+            PackageInfo pkgInfo = IGetThemePackageInfo(packageName);
+            ThemeIndex.Entry entry = IGetThemeEntry(pkgInfo);
+            // keyed by package version, stale thumbnails are removed on package changes
+            File thumbnailFile = new File(new File(mThumbnailDir, packageName),
+                    entry.lastUpdateTime + "_" + width + "x" + height);
+            Bitmap bitmap = BitmapUtil.decodeFile(thumbnailFile);
+            if (bitmap != null) return bitmap;
+
+            Resources resources = ResourcesCache.get(mPackageManager, pkgInfo);
+            bitmap = BitmapUtil.decodeSampledResource(resources, entry.resIds[ThemeIndex.RES_IMAGE], width, height);
+            if (bitmap != null) {
+                BitmapUtil.saveBitmap(bitmap, thumbnailFile);
+            }
+            return bitmap;
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to get thumbnail of " + packageName);
+        }
+        return null;
+    }
+
+    private void IClearThumbnails(String packageName) {
+        File[] thumbnailFiles = new File(mThumbnailDir, packageName).listFiles();
+        if (thumbnailFiles != null) {
+            for (File thumbnailFile : thumbnailFiles) thumbnailFile.delete();
+        }
+    }
 
-            String[] previewsArray = assetManager.list(Constants.THEME_DATA_ASSETS_PREVIEWS);
+    private List<String> IGetThemePreviewNames(String packageName) {
+        List<String> previewList = new ArrayList<>();
+
+        try {
+            Resources resources = ResourcesCache.get(mPackageManager, IGetThemePackageInfo(packageName));
+            String[] previewsArray = resources.getAssets().list(Constants.THEME_DATA_ASSETS_PREVIEWS);
             if (previewsArray != null) {
-                for (String preview : previewsArray) {
-                    InputStream inputStream = assetManager.open(Constants.THEME_DATA_ASSETS_PREVIEWS + "/" + preview);
-                    Drawable drawable = Drawable.createFromStream(inputStream, preview);
-                    previewList.add(drawable);
-                }
+                previewList.addAll(Arrays.asList(previewsArray));
             }
         } catch (Exception e) {
             Log.e(TAG, "Failed to get previews of " + packageName);
@@ -161,30 +549,62 @@ public class ThemeDataService extends Service {
         return previewList;
     }
 
-    private ThemeTarget getOverlayTarget(String packageName) {
+    private Bitmap IGetThemePreviewImage(String packageName, String previewName, int width, int height) {
         try {
-            ApplicationInfo ai = mPackageManager.getApplicationInfo(packageName, 0);
-
-            ThemeTarget overlayTarget = new ThemeTarget(packageName, ThemeTarget.TYPE_APPLICATIONS);
-            overlayTarget.setLabel(ai.loadLabel(mPackageManager).toString());
-            return overlayTarget;
-        } catch (PackageManager.NameNotFoundException e) {
-            Log.e(TAG, "Failed to get info of " + packageName + ": package not found");
+            Resources resources = ResourcesCache.get(mPackageManager, IGetThemePackageInfo(packageName));
+            return BitmapUtil.decodeSampledAsset(resources.getAssets(),
+                    Constants.THEME_DATA_ASSETS_PREVIEWS + "/" + previewName, width, height);
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to get preview " + previewName + " of " + packageName);
         }
         return null;
     }
 
-    private void IGetThemeBaseInfo(ThemeBase themeBase) {
-        String packageName = themeBase.getPackageName();
-        try {
-            Resources resources = mPackageManager.getResourcesForApplication(packageName);
-            ApplicationInfo ai = mPackageManager.getApplicationInfo(packageName, PackageManager.GET_META_DATA);
-            int themeTitleResId = resources.getIdentifier(Constants.THEME_DATA_TITLE, "string", packageName);
-            int themeAuthorResId = resources.getIdentifier(Constants.THEME_DATA_AUTHOR, "string", packageName);
+    // package updates aren't seen while the service isn't running, so cached
+    // resources and index entries are checked against the current version
+    private PackageInfo IGetThemePackageInfo(String packageName) throws PackageManager.NameNotFoundException {
+        return mPackageManager.getPackageInfo(packageName, PackageManager.GET_META_DATA);
+    }
 
-            themeBase.setTitle(resources.getString(themeTitleResId));
-            themeBase.setAuthor(resources.getString(themeAuthorResId));
-            themeBase.setRemovable((ai.flags & ApplicationInfo.FLAG_SYSTEM) != 0);
+    // returns the indexed entry of a theme, inspecting it if it isn't indexed or outdated
+    private ThemeIndex.Entry IGetThemeEntry(PackageInfo pkgInfo) throws PackageManager.NameNotFoundException {
+        String packageName = pkgInfo.packageName;
+        ThemeIndex.Entry entry = mThemeIndex.get(packageName);
+        if (entry != null && entry.isTheme && entry.resIds != null && entry.matches(pkgInfo)) {
+            return entry;
+        }
+        if (!ThemePackageScanner.isThemeApplication(pkgInfo.applicationInfo)) {
+            throw new PackageManager.NameNotFoundException(packageName + " is not a theme package");
+        }
+        entry = new ThemeIndex.Entry(pkgInfo);
+        IGetThemeBaseInfo(entry, pkgInfo);
+        mThemeIndex.put(entry);
+        IIndexTheme(entry);
+        return entry;
+    }
+
+    private void IGetThemeBaseInfo(ThemeIndex.Entry entry, PackageInfo pkgInfo) {
+        String packageName = pkgInfo.packageName;
+        ApplicationInfo ai = pkgInfo.applicationInfo;
+        entry.isTheme = true;
+        entry.removable = (ai.flags & ApplicationInfo.FLAG_SYSTEM) != 0;
+        try {
+            Resources resources = ResourcesCache.get(mPackageManager, pkgInfo);
+            entry.resIds = ThemeIndex.resolveResIds(resources, packageName);
+
+            entry.title = resources.getString(entry.resIds[ThemeIndex.RES_TITLE]);
+            entry.author = resources.getString(entry.resIds[ThemeIndex.RES_AUTHOR]);
+
+            // only collect target package names, labels are resolved when searching
+            List<String> targets = new ArrayList<>();
+            ThemeDataParser parser = new ThemeDataParser(target -> {
+                targets.add(target);
+                return null;
+            }, null);
+            try (XmlResourceParser themeInfoXml = resources.getXml(entry.resIds[ThemeIndex.RES_XML])) {
+                parser.parse(themeInfoXml, new ThemeItem(packageName), new ArrayList<>());
+            }
+            entry.targets = targets.toArray(new String[0]);
         } catch (Exception e) {
             Log.e(TAG, "Failed to get theme info: " + packageName);
         }
@@ -192,37 +612,40 @@ public class ThemeDataService extends Service {
 
     private ThemeItem IGetThemeItem(String packageName) {
         try {
-            Resources resources = mPackageManager.getResourcesForApplication(packageName);
-            ThemeItem theme = new ThemeItem(packageName) ;
-            IGetThemeBaseInfo(theme);
-            int hasBootanimResId = resources.getIdentifier(Constants.THEME_DATA_HAS_BOOTANIM, "bool", packageName);
+            PackageInfo pkgInfo = IGetThemePackageInfo(packageName);
+            ThemeIndex.Entry entry = IGetThemeEntry(pkgInfo);
+            String cacheKey = IGetThemeItemCacheKey(entry);
+            ThemeItem theme = mThemeItemCache.load(packageName, cacheKey);
+            if (theme != null) {
+                return theme;
+            }
+
+            Resources resources = ResourcesCache.get(mPackageManager, pkgInfo);
+            theme = new ThemeItem(packageName) ;
+            theme.setTitle(entry.title);
+            theme.setAuthor(entry.author);
+            theme.setRemovable(entry.removable);
+            int hasBootanimResId = entry.resIds[ThemeIndex.RES_HAS_BOOTANIM];
             theme.hasBootanimation = (hasBootanimResId != 0) && resources.getBoolean(hasBootanimResId);
-            int hasFontsResId = resources.getIdentifier(Constants.THEME_DATA_HAS_FONTS, "bool", packageName);
+            int hasFontsResId = entry.resIds[ThemeIndex.RES_HAS_FONTS];
             theme.hasFonts = (hasFontsResId != 0) && resources.getBoolean(hasFontsResId);
 
             List<ThemeTarget> overlayTargetList = new ArrayList<>();
-            int themeInfoXmlResId = resources.getIdentifier(Constants.THEME_DATA_XML_FILE, "xml", packageName);
-            XmlResourceParser themeInfoXml = resources.getXml(themeInfoXmlResId);
-            int eventType = themeInfoXml.getEventType();
-
-            while (eventType != XmlResourceParser.END_DOCUMENT) {
-                if (eventType == XmlResourceParser.START_TAG) {
-                    switch (themeInfoXml.getName().toLowerCase()) {
-                        case Constants.THEME_DATA_XML_OVERLAY:
-                            overlayParser(themeInfoXml, overlayTargetList);
-                            break;
-                        case Constants.THEME_DATA_XML_SOUNDS:
-                            soundsParser(themeInfoXml, theme);
-                            break;
-                        case Constants.THEME_DATA_XML_BACKGROUNDS:
-                            backgroundParser(themeInfoXml, theme);
-                            break;
-                    }
-                }
-                eventType = themeInfoXml.next();
+            int themeInfoXmlResId = entry.resIds[ThemeIndex.RES_XML];
+            DisplayMetrics displayMetrics = getResources().getDisplayMetrics();
+            AssetManager assetManager = resources.getAssets();
+            WallpaperSelector wallpaperSelector = new WallpaperSelector(displayMetrics.widthPixels, displayMetrics.heightPixels,
+                    (file, outSize) -> BitmapUtil.decodeAssetBounds(assetManager,
+                            Constants.THEME_DATA_ASSETS_BACKGROUNDS + "/" + file, outSize));
+            ThemeDataParser parser = new ThemeDataParser(mTargetResolver::resolve, wallpaperSelector);
+            mTargetResolver.setLocale(getResources().getConfiguration().getLocales().toLanguageTags());
+            try (XmlResourceParser themeInfoXml = resources.getXml(themeInfoXmlResId)) {
+                parser.parse(themeInfoXml, theme, overlayTargetList);
             }
+            mTargetResolver.save();
 
             theme.setOverlayTargets(overlayTargetList);
+            mThemeItemCache.save(theme, cacheKey);
             return theme;
         } catch (Exception e) {
             Log.e(TAG, "Failed to get theme info: " + packageName);
@@ -230,130 +653,13 @@ public class ThemeDataService extends Service {
         }
     }
 
-    private void overlayParser(XmlResourceParser xml, List<ThemeTarget> list) throws XmlPullParserException, IOException {
-        int eventType = xml.next();
-        int tagNum = 0;
-        String tagName = null;
-        boolean overlaySwitchable = true;
-        while (eventType != XmlResourceParser.END_TAG || tagNum > 0) {
-            switch (eventType) {
-                case XmlResourceParser.START_TAG:
-                    tagNum++;
-                    tagName = xml.getName().toLowerCase();
-                    overlaySwitchable = true;
-                    if (Constants.THEME_DATA_XML_OVERLAY_TARGET.equals(tagName)) {
-                        for (int i = 0; i < xml.getAttributeCount(); i++) {
-                            if (xml.getAttributeName(i).equals(Constants.THEME_DATA_XML_OVERLAY_TARGET_ATTR_SWITCHABLE)) {
-                                overlaySwitchable = xml.getAttributeBooleanValue(i, true);
-                                break;
-                            }
-                        }
-                    }
-                    break;
-                case XmlResourceParser.TEXT:
-                    if (Constants.THEME_DATA_XML_OVERLAY_TARGET.equals(tagName)) {
-                        ThemeTarget overlayTarget = getOverlayTarget(xml.getText());
-                        if (overlayTarget == null) continue;
-                        overlayTarget.setSwitchable(overlaySwitchable);
-                        list.add(overlayTarget);
-                    }
-                    break;
-                case XmlResourceParser.END_TAG:
-                    tagNum--;
-                    break;
-            }
-            eventType = xml.next();
-        }
-    }
-
-    private void soundsParser(XmlResourceParser xml, ThemeItem theme) throws XmlPullParserException, IOException {
-        int eventType = xml.next();
-        String tagName = null;
-        int tagNum = 0;
-        String title = null;
-        while (eventType != XmlResourceParser.END_TAG || tagNum > 0) {
-            switch (eventType) {
-                case XmlResourceParser.START_TAG:
-                    tagName = xml.getName().toLowerCase();
-                    tagNum++;
-                    title = null;
-                    for (int i = 0; i < xml.getAttributeCount(); i++) {
-                        if (xml.getAttributeName(i).equals(Constants.THEME_DATA_XML_SOUND_TITLE)) {
-                            title = xml.getAttributeValue(i);
-                            break;
-                        }
-                    }
-                    break;
-                case XmlResourceParser.TEXT:
-                    if (tagName == null) break;
-                    switch (tagName) {
-                        case Constants.THEME_DATA_XML_SOUND_RINGTONE:
-                            theme.setRingtone(xml.getText());
-                            theme.setRingtoneTitle(title);
-                            break;
-                        case Constants.THEME_DATA_XML_SOUND_ALARM:
-                            theme.setAlarmSound(xml.getText());
-                            theme.setAlarmTitle(title);
-                            break;
-                        case Constants.THEME_DATA_XML_SOUND_NOTIFICATION:
-                            theme.setNotificationSound(xml.getText());
-                            theme.setNotificationTitle(title);
-                            break;
-                    }
-                    break;
-                case XmlResourceParser.END_TAG:
-                    tagNum--;
-                    break;
-            }
-            eventType = xml.next();
-        }
-    }
-
-    private void backgroundParser(XmlResourceParser xml, ThemeItem theme) throws XmlPullParserException, IOException {
-        int eventType = xml.next();
-        String tagName = null;
-        int tagNum = 0;
+    // the parse result depends on the package, target labels and display size,
+    // so the chosen wallpaper variants are cached per display configuration
+    private String IGetThemeItemCacheKey(ThemeIndex.Entry entry) {
         DisplayMetrics displayMetrics = getResources().getDisplayMetrics();
-        double ratioWidth = -1, ratioHeight = -1;
-        while (eventType != XmlResourceParser.END_TAG || tagNum > 0) {
-            switch (eventType) {
-                case XmlResourceParser.START_TAG:
-                    tagName = xml.getName().toLowerCase();
-                    tagNum++;
-                    if (tagName.equals(Constants.THEME_DATA_XML_BACKGROUND_WALLPAPER) || tagName.equals(Constants.THEME_DATA_XML_BACKGROUND_LOCKSCREEN)) {
-                        ratioWidth = ratioHeight = -1;
-                        for (int i = 0; i < xml.getAttributeCount(); i++) {
-                            if (xml.getAttributeName(i).equals(Constants.THEME_DATA_XML_BACKGROUND_RATIO_WIDTH)) {
-                                ratioWidth = Float.parseFloat(xml.getAttributeValue(i));
-                            } else if (xml.getAttributeName(i).equals(Constants.THEME_DATA_XML_BACKGROUND_RATIO_HEIGHT)) {
-                                ratioHeight = Float.parseFloat(xml.getAttributeValue(i));
-                            }
-                        }
-                    }
-                    break;
-                case XmlResourceParser.TEXT:
-                    if (tagName != null)
-                    switch (tagName) {
-                        case Constants.THEME_DATA_XML_BACKGROUND_LOCKSCREEN:
-                            if (((ratioHeight == -1 || ratioWidth == -1) && !theme.hasLockScreen()) ||
-                                (displayMetrics.widthPixels / ratioWidth == displayMetrics.heightPixels / ratioHeight)) {
-                                theme.setLockScreen(xml.getText());
-                            }
-                            break;
-                        case Constants.THEME_DATA_XML_BACKGROUND_WALLPAPER:
-                            if (((ratioHeight == -1 || ratioWidth == -1) && !theme.hasWallpaper()) ||
-                                    (displayMetrics.widthPixels / ratioWidth == displayMetrics.heightPixels / ratioHeight)) {
-                                theme.setWallpaper(xml.getText());
-                            }
-                            break;
-                    }
-                    break;
-                case XmlResourceParser.END_TAG:
-                    tagNum--;
-                    break;
-            }
-            eventType = xml.next();
-        }
+        return entry.lastUpdateTime + ":" + entry.versionCode + ":" +
+                getResources().getConfiguration().getLocales().toLanguageTags() + ":" +
+                displayMetrics.widthPixels + "x" + displayMetrics.heightPixels;
     }
 
 }
@@ -17,55 +17,89 @@
 package org.exthmui.theme.services;
 
 import android.app.Service;
+import android.app.WallpaperManager;
 import android.content.ComponentName;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.om.IOverlayManager;
+import android.content.om.OverlayInfo;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
+import android.content.pm.PackageInstaller;
 import android.content.pm.PackageManager;
 import android.content.res.AssetManager;
 import android.content.res.Resources;
-import android.graphics.BitmapFactory;
+import android.media.RingtoneManager;
 import android.os.Binder;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.os.RemoteException;
 import android.os.ServiceManager;
-import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.util.Log;
 
 import androidx.preference.PreferenceManager;
 
 import org.exthmui.theme.misc.Constants;
+import org.exthmui.theme.misc.FontRefreshCoordinator;
+import org.exthmui.theme.misc.ThemeApplyPlanner;
+import org.exthmui.theme.misc.ThemeApplyState;
+import org.exthmui.theme.misc.ThemeDataManifest;
 import org.exthmui.theme.models.ThemeBase;
 import org.exthmui.theme.models.ThemeItem;
 import org.exthmui.theme.models.ThemeTarget;
 import org.exthmui.theme.utils.FileUtil;
 import org.exthmui.theme.utils.PackageUtil;
+import org.exthmui.theme.utils.ResourcesCache;
 import org.exthmui.theme.utils.SoundUtil;
 import org.exthmui.theme.utils.WallpaperUtil;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
 
 public class ThemeManageService extends Service {
 
     private final static String TAG = "ThemeManageService";
 
+    private final static String OVERLAY_STAGING_DIR = "overlay_staging";
+    private final static String OVERLAY_DIGESTS_PREFS = "overlay_digests";
+    private final static String APPLY_STATE_FILE = "apply_state";
+    // lockscreen token when it shares the system wallpaper, followed by that wallpaper's id
+    private final static String SHARED_LOCKSCREEN_TOKEN_PREFIX = "shared:";
+    // independent apply stages run on this many threads
+    private final static int APPLY_STAGE_THREADS = 3;
+
     private IOverlayManager mOverlayService;
     private PackageManager mPackageManager;
     private List<ThemeApplyStatusListener> mApplyStatusListenerList;
     private Queue<Intent> mApplyStatusQueue;
+    // overlay asset digest -> installed package name and lastUpdateTime
+    private SharedPreferences mOverlayDigests;
+    private ThemeApplyState mApplyState;
+    private ThemeDataManifest mThemeDataManifest;
+    private ExecutorService mApplyExecutor;
+    private FontRefreshCoordinator mFontRefreshCoordinator;
 
     @Override
     public void onCreate() {
@@ -73,6 +107,18 @@ public class ThemeManageService extends Service {
         mPackageManager = getPackageManager();
         mApplyStatusQueue = new LinkedBlockingQueue<>();
         mApplyStatusListenerList = new Vector<>();
+        mOverlayDigests = getSharedPreferences(OVERLAY_DIGESTS_PREFS, MODE_PRIVATE);
+        mApplyState = new ThemeApplyState(new File(getFilesDir(), APPLY_STATE_FILE));
+        mApplyState.load();
+        mThemeDataManifest = new ThemeDataManifest(new File(Constants.THEME_DATA_MANIFEST_PATH));
+        mThemeDataManifest.load();
+        mApplyExecutor = Executors.newFixedThreadPool(APPLY_STAGE_THREADS);
+        mFontRefreshCoordinator = new FontRefreshCoordinator(this, mOverlayService);
+    }
+
+    @Override
+    public void onDestroy() {
+        mApplyExecutor.shutdown();
     }
 
     @Override
@@ -80,6 +126,11 @@ public class ThemeManageService extends Service {
         return new ThemeManageBinder();
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        ResourcesCache.trimMemory(level);
+    }
+
     public class ThemeManageBinder extends Binder {
         public void applyTheme(ThemeItem theme, Bundle bundle) {
             new Thread(() -> {
@@ -93,6 +144,15 @@ public class ThemeManageService extends Service {
             }).start();
         }
 
+        // dry run, returns what applyTheme would change or null if the theme is gone
+        public ThemeApplyPlanner.Plan planTheme(ThemeItem theme, Bundle bundle) {
+            try {
+                return IPlanTheme(theme, bundle);
+            } catch (PackageManager.NameNotFoundException e) {
+                return null;
+            }
+        }
+
         public void addThemeApplyStatusListener(ThemeApplyStatusListener listener) {
             mApplyStatusListenerList.add(listener);
             notifyThemeApplyStatus();
@@ -113,244 +173,473 @@ public class ThemeManageService extends Service {
         final SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
         final boolean uninstallFlag = preferences.getBoolean(Constants.PREFERENCES_OVERLAY_REMOVE_FLAG, false);
         final boolean wallpaperCenterFlag = preferences.getBoolean(Constants.PREFERENCES_FORCED_CENTER_WALLPAPER, false);
-        boolean needCleanFonts = true;
-        boolean needCleanBootanim = true;
-
-        List<ThemeTarget> overlayTargetPackages = theme.getOverlayTargets();
-        Map<String, String> themeOverlays = new HashMap<>();
 
         Resources themeResources;
+        ThemeApplyPlanner.Plan plan;
         try {
-            themeResources = mPackageManager.getResourcesForApplication(theme.getPackageName());
+            // the theme may have been updated since it was cached, load it for this version
+            PackageInfo pkgInfo = mPackageManager.getPackageInfo(theme.getPackageName(), 0);
+            themeResources = ResourcesCache.get(mPackageManager, pkgInfo);
+            plan = IPlanTheme(theme, bundle, pkgInfo.lastUpdateTime);
         } catch (PackageManager.NameNotFoundException e) {
             e.printStackTrace();
             return false;
         }
 
-        AssetManager themeAssetManager = themeResources.getAssets();
-
-        // install overlay
-        if (!overlayTargetPackages.isEmpty()) setThemeApplyStatus(Constants.THEME_INSTALLING_OVERLAY, theme);
-        for (ThemeTarget ovt : overlayTargetPackages) {
-            if (!bundle.getBoolean(ovt.getTargetId(), true)) {
-                continue;
-            }
-            InputStream is;
-            try {
-                is = themeAssetManager.open(Constants.THEME_DATA_ASSETS_OVERLAY + "/" + ovt.getTargetId());
-            } catch (IOException e) {
-                e.printStackTrace();
-                return false;
-            }
-
-            final AtomicBoolean installResult = new AtomicBoolean();
-
-            synchronized (installResult) {
-                PackageUtil.installPackage(this, is, new PackageUtil.PackageInstallerCallback() {
-                    @Override
-                    public void onResponse(String packageName, int code) {
-                        // check installed package for security reasons
-                        if (!isThemeOverlayPackage(packageName)) {
-                            Log.w(TAG, "Package " + packageName + " is not a verified overlay package!");
-                        } else {
-                            themeOverlays.put(ovt.getTargetId(), packageName);
-                        }
-                        synchronized (installResult) {
-                            installResult.set(code == 0);
-                            installResult.notify();
-                        }
-                    }
-                });
-
-                try {
-                    installResult.wait();
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                    return false;
-                }
+        final AssetManager themeAssetManager = themeResources.getAssets();
+        final Map<String, String> themeOverlays = new ConcurrentHashMap<>();
+        final List<String> overlayTargets = plan.getAppliedOverlayTargets();
+        // the lockscreen is always centered, so it can share the decode with a centered wallpaper
+        final boolean sharedBackground = wallpaperCenterFlag &&
+                plan.needsApply(Constants.THEME_TARGET_WALLPAPER) && plan.needsApply(Constants.THEME_TARGET_LOCKSCREEN) &&
+                IIsSameAsset(themeAssetManager, Constants.THEME_DATA_ASSETS_BACKGROUNDS + "/" + theme.getWallpaper(),
+                        Constants.THEME_DATA_ASSETS_BACKGROUNDS + "/" + theme.getLockScreen());
+
+        // the content stages run in parallel and each runs whatever the others do, so a
+        // failed stage only leaves its own slots unapplied. new overlays are enabled and the
+        // old ones cleaned up only once all of them succeeded, never next to an old theme
+        CompletableFuture<Boolean> installOverlays = runStage(mApplyExecutor,
+                () -> IInstallOverlaysStage(themeAssetManager, overlayTargets, themeOverlays));
+        CompletableFuture<Boolean> wallpaper = runStage(mApplyExecutor,
+                () -> IApplyWallpaperStage(theme, themeAssetManager, plan, wallpaperCenterFlag, sharedBackground));
+        CompletableFuture<Boolean> lockScreen = runStage(mApplyExecutor,
+                () -> sharedBackground || IApplyLockScreenStage(theme, themeAssetManager, plan));
+        // the sounds share MediaStore rows and preferences, so they run one after another
+        CompletableFuture<Boolean> sounds = runStage(mApplyExecutor,
+                () -> IApplySoundStage(themeAssetManager, plan, Constants.THEME_TARGET_RINGTONE,
+                        theme.getRingtone(), theme.getRingtoneTitle(), SoundUtil.TYPE_RINGTONE) &&
+                        IApplySoundStage(themeAssetManager, plan, Constants.THEME_TARGET_ALARM,
+                                theme.getAlarmSound(), theme.getAlarmTitle(), SoundUtil.TYPE_ALARM) &&
+                        IApplySoundStage(themeAssetManager, plan, Constants.THEME_TARGET_NOTIFICATION,
+                                theme.getNotificationSound(), theme.getNotificationTitle(), SoundUtil.TYPE_NOTIFICATION));
+        CompletableFuture<Boolean> bootanimation = runStage(mApplyExecutor,
+                () -> IApplyBootanimationStage(themeAssetManager, plan));
+        CompletableFuture<Boolean> fonts = runStage(mApplyExecutor,
+                () -> IApplyFontsStage(themeAssetManager, plan, userId));
+        // completed once the statuses of the stages above are sent, the overlay progress follows them
+        CompletableFuture<Boolean> statusesSent = new CompletableFuture<>();
+        CompletableFuture<Boolean> enableOverlays = runStage(mApplyExecutor,
+                () -> IEnableOverlaysStage(theme, plan, overlayTargets, themeOverlays, uninstallFlag, userId),
+                installOverlays, wallpaper, lockScreen, sounds, bootanimation, fonts, statusesSent);
+        CompletableFuture<Boolean> cleanup = runStage(mApplyExecutor,
+                () -> ICleanupStage(theme, plan, themeOverlays, uninstallFlag, userId),
+                enableOverlays);
 
-                if (!installResult.get()) {
-                    return false;
-                }
-            }
+        try {
+            // statuses go out from here in the order the stages used to run one after another
+            ISendStageStatus(theme, !overlayTargets.isEmpty(), Constants.THEME_INSTALLING_OVERLAY, installOverlays);
+            ISendStageStatus(theme, plan.needsApply(Constants.THEME_TARGET_WALLPAPER), Constants.THEME_APPLYING_WALLPAPER, wallpaper);
+            ISendStageStatus(theme, plan.needsApply(Constants.THEME_TARGET_LOCKSCREEN), Constants.THEME_APPLYING_LOCKSCREEN, lockScreen);
+            ISendStageStatus(theme, plan.needsApply(Constants.THEME_TARGET_RINGTONE), Constants.THEME_APPLYING_RINGTONE, sounds);
+            ISendStageStatus(theme, plan.needsApply(Constants.THEME_TARGET_ALARM), Constants.THEME_APPLYING_ALARM, sounds);
+            ISendStageStatus(theme, plan.needsApply(Constants.THEME_TARGET_NOTIFICATION), Constants.THEME_APPLYING_NOTIFICATION, sounds);
+            ISendStageStatus(theme, plan.needsApply(Constants.THEME_TARGET_BOOTANIMATION), Constants.THEME_APPLYING_BOOTANIMATION, bootanimation);
+            ISendStageStatus(theme, plan.needsApply(Constants.THEME_TARGET_FONTS), Constants.THEME_APPLYING_FONTS, fonts);
+            statusesSent.complete(true);
+            boolean ret = cleanup.get();
+            // only a finished full apply has removed the overlays of earlier applies
+            if (ret && plan.fullApply) mApplyState.setKnown();
+            return ret;
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            statusesSent.complete(false);
+            // stages already running still record what they finished
+            CompletableFuture.allOf(installOverlays, wallpaper, lockScreen, sounds,
+                    bootanimation, fonts, enableOverlays, cleanup)
+                    .whenComplete((v, t) -> {
+                        mApplyState.save();
+                        mThemeDataManifest.save();
+                    });
         }
+    }
 
-        // wallpaper and lockscreen
-        if (theme.hasWallpaper() && bundle.getBoolean(Constants.THEME_TARGET_WALLPAPER, true)) {
-            setThemeApplyStatus(Constants.THEME_APPLYING_WALLPAPER, theme);
-            try {
-                InputStream is = themeAssetManager.open(Constants.THEME_DATA_ASSETS_BACKGROUNDS + "/" + theme.getWallpaper());
-                WallpaperUtil.setWallpaper(this, BitmapFactory.decodeStream(is), wallpaperCenterFlag);
-            } catch (IOException e) {
-                e.printStackTrace();
-                return false;
-            }
+    // sends the status of a stage and waits for it, so the next status doesn't overtake it
+    private void ISendStageStatus(ThemeItem theme, boolean needed, String status,
+                                  CompletableFuture<Boolean> stage) throws InterruptedException {
+        if (needed) setThemeApplyStatus(status, theme);
+        try {
+            stage.get();
+        } catch (ExecutionException e) {
+            // reported by the stages depending on it
         }
+    }
 
-        if (theme.hasLockScreen() && bundle.getBoolean(Constants.THEME_TARGET_LOCKSCREEN, true)) {
-            setThemeApplyStatus(Constants.THEME_APPLYING_LOCKSCREEN, theme);
-            try {
-                InputStream is = themeAssetManager.open(Constants.THEME_DATA_ASSETS_BACKGROUNDS + "/" + theme.getLockScreen());
-                WallpaperUtil.setLockScreen(this, BitmapFactory.decodeStream(is), true);
-            } catch (IOException e) {
-                e.printStackTrace();
-                return false;
+    // runs stage once all dependencies succeeded, a failed dependency fails it without running
+    @SafeVarargs
+    private static CompletableFuture<Boolean> runStage(Executor executor, BooleanSupplier stage,
+                                                       CompletableFuture<Boolean>... dependencies) {
+        return CompletableFuture.allOf(dependencies).thenApplyAsync(v -> {
+            for (CompletableFuture<Boolean> dependency : dependencies) {
+                if (!dependency.join()) return false;
             }
+            return stage.getAsBoolean();
+        }, executor);
+    }
+
+    private boolean IInstallOverlaysStage(AssetManager themeAssetManager, List<String> overlayTargets,
+                                          Map<String, String> themeOverlays) {
+        if (overlayTargets.isEmpty()) return true;
+        Map<String, File> stagedOverlays = new LinkedHashMap<>();
+        Map<String, String> stagedDigests = new HashMap<>();
+        try {
+            return IStageOverlays(themeAssetManager, overlayTargets, stagedOverlays, stagedDigests, themeOverlays) &&
+                    IInstallOverlays(stagedOverlays, stagedDigests, themeOverlays);
+        } finally {
+            for (File stagedOverlay : stagedOverlays.values()) stagedOverlay.delete();
         }
+    }
 
-        // sounds
-        if (theme.hasRingtone() && bundle.getBoolean(Constants.THEME_TARGET_RINGTONE, true)) {
-            setThemeApplyStatus(Constants.THEME_APPLYING_RINGTONE, theme);
-            try {
-                InputStream is = themeAssetManager.open(Constants.THEME_DATA_ASSETS_SOUNDS + "/" + theme.getRingtone());
-                if (!SoundUtil.setRingtone(this, theme.getRingtone(), theme.getRingtoneTitle(), is, SoundUtil.TYPE_RINGTONE)) return false;
-            } catch (IOException e) {
-                e.printStackTrace();
-                return false;
-            }
+    private boolean IApplyWallpaperStage(ThemeItem theme, AssetManager themeAssetManager,
+                                         ThemeApplyPlanner.Plan plan, boolean center, boolean withLockScreen) {
+        if (!plan.needsApply(Constants.THEME_TARGET_WALLPAPER)) return true;
+        String path = Constants.THEME_DATA_ASSETS_BACKGROUNDS + "/" + theme.getWallpaper();
+        try {
+            boolean ret = withLockScreen ?
+                    WallpaperUtil.setWallpaperAndLockScreen(this, themeAssetManager, path, center) :
+                    WallpaperUtil.setWallpaper(this, themeAssetManager, path, center);
+            if (!ret) return false;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
         }
+        String systemId = String.valueOf(WallpaperManager.getInstance(this).getWallpaperId(WallpaperManager.FLAG_SYSTEM));
+        IRecordApplied(plan, Constants.THEME_TARGET_WALLPAPER, systemId);
+        if (withLockScreen) {
+            // the lock id stays -1 whatever home+lock wallpaper is set later, tie it to this one
+            IRecordApplied(plan, Constants.THEME_TARGET_LOCKSCREEN, SHARED_LOCKSCREEN_TOKEN_PREFIX + systemId);
+        }
+        return true;
+    }
 
-        if (theme.hasAlarmSound() && bundle.getBoolean(Constants.THEME_TARGET_ALARM, true)) {
-            setThemeApplyStatus(Constants.THEME_APPLYING_ALARM, theme);
-            try {
-                InputStream is = themeAssetManager.open(Constants.THEME_DATA_ASSETS_SOUNDS + "/" + theme.getAlarmSound());
-                if (!SoundUtil.setRingtone(this, theme.getAlarmSound(), theme.getAlarmTitle(), is, SoundUtil.TYPE_ALARM)) return false;
-            } catch (IOException e) {
-                e.printStackTrace();
-                return false;
-            }
+    private boolean IApplyLockScreenStage(ThemeItem theme, AssetManager themeAssetManager, ThemeApplyPlanner.Plan plan) {
+        if (!plan.needsApply(Constants.THEME_TARGET_LOCKSCREEN)) return true;
+        try {
+            if (!WallpaperUtil.setLockScreen(this, themeAssetManager,
+                    Constants.THEME_DATA_ASSETS_BACKGROUNDS + "/" + theme.getLockScreen(), true)) return false;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
         }
+        IRecordApplied(plan, Constants.THEME_TARGET_LOCKSCREEN,
+                String.valueOf(WallpaperManager.getInstance(this).getWallpaperId(WallpaperManager.FLAG_LOCK)));
+        return true;
+    }
 
-        if (theme.hasNotificationSound() && bundle.getBoolean(Constants.THEME_TARGET_NOTIFICATION, true)) {
-            setThemeApplyStatus(Constants.THEME_APPLYING_NOTIFICATION, theme);
-            try {
-                InputStream is = themeAssetManager.open(Constants.THEME_DATA_ASSETS_SOUNDS + "/" + theme.getNotificationSound());
-                if (!SoundUtil.setRingtone(this, theme.getNotificationSound(), theme.getNotificationTitle(), is, SoundUtil.TYPE_NOTIFICATION)) return false;
-            } catch (IOException e) {
-                e.printStackTrace();
-                return false;
-            }
+    private boolean IApplySoundStage(AssetManager themeAssetManager, ThemeApplyPlanner.Plan plan,
+                                     String slot, String file, String title, int type) {
+        if (!plan.needsApply(slot)) return true;
+        try {
+            InputStream is = themeAssetManager.open(Constants.THEME_DATA_ASSETS_SOUNDS + "/" + file);
+            if (!SoundUtil.setRingtone(this, file, title, is, type)) return false;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
         }
+        IRecordApplied(plan, slot, IGetSoundToken(type));
+        return true;
+    }
 
-        // bootanimation
-        if (theme.hasBootanimation && bundle.getBoolean(Constants.THEME_TARGET_BOOTANIMATION, true)) {
-            setThemeApplyStatus(Constants.THEME_APPLYING_BOOTANIMATION, theme);
-            needCleanBootanim = false;
-            try {
-                File bootanimFile = new File(Constants.THEME_DATA_BOOTANIMATION_PATH + "/bootanimation.zip");
-                File darkBootanimFile = new File(Constants.THEME_DATA_BOOTANIMATION_PATH + "/bootanimation-dark.zip");
-                bootanimFile.delete(); darkBootanimFile.delete();
-                InputStream is = themeAssetManager.open(Constants.THEME_DATA_ASSETS_MEDIA + "/bootanimation.zip");
-                FileUtil.saveInputStream(bootanimFile.getAbsolutePath(), is, true);
-                try {
-                    InputStream darkIS = themeAssetManager.open(Constants.THEME_DATA_ASSETS_MEDIA + "/bootanimation-dark.zip");
-                    FileUtil.saveInputStream(darkBootanimFile.getAbsolutePath(), darkIS, true);
-                } catch (IOException e) {
-                    // could not found dark mode animation
-                    Runtime.getRuntime().exec("ln -s " + bootanimFile.getAbsolutePath() + " " + darkBootanimFile.getAbsolutePath());
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-                return false;
-            }
+    private boolean IApplyBootanimationStage(AssetManager themeAssetManager, ThemeApplyPlanner.Plan plan) {
+        if (!plan.needsApply(Constants.THEME_TARGET_BOOTANIMATION)) return true;
+        try {
+            File bootanimFile = new File(Constants.THEME_DATA_BOOTANIMATION_PATH + "/bootanimation.zip");
+            File darkBootanimFile = new File(Constants.THEME_DATA_BOOTANIMATION_PATH + "/bootanimation-dark.zip");
+            mThemeDataManifest.deploy(themeAssetManager, Constants.THEME_DATA_ASSETS_MEDIA + "/bootanimation.zip", bootanimFile);
+            // without a dark mode animation, or with an identical one, the light one is linked
+            mThemeDataManifest.deployOrLink(themeAssetManager, Constants.THEME_DATA_ASSETS_MEDIA + "/bootanimation-dark.zip",
+                    darkBootanimFile, bootanimFile);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
         }
+        IRecordApplied(plan, Constants.THEME_TARGET_BOOTANIMATION, null);
+        return true;
+    }
 
-        // fonts
-        if (theme.hasFonts && bundle.getBoolean(Constants.THEME_TARGET_FONTS, true)) {
-            setThemeApplyStatus(Constants.THEME_APPLYING_FONTS, theme);
-            needCleanFonts = false;
-            File fontDir = new File(Constants.THEME_DATA_FONTS_PATH);
-            File[] existFontFiles = fontDir.listFiles();
-            if (existFontFiles != null) {
-                for (File fontFile : existFontFiles) fontFile.delete();
-            }
-            try {
-                String[] fontsArray = themeAssetManager.list(Constants.THEME_DATA_ASSETS_FONTS);
-                if (fontsArray != null) {
-                    for (String fileName : fontsArray) {
-                        InputStream is = themeAssetManager.open(Constants.THEME_DATA_ASSETS_FONTS + "/" + fileName);
-                        FileUtil.saveInputStream(Constants.THEME_DATA_FONTS_PATH + fileName, is, true);
-                    }
+    private boolean IApplyFontsStage(AssetManager themeAssetManager, ThemeApplyPlanner.Plan plan, int userId) {
+        if (!plan.needsApply(Constants.THEME_TARGET_FONTS)) return true;
+        File fontDir = new File(Constants.THEME_DATA_FONTS_PATH);
+        try {
+            boolean changed = false;
+            Set<String> fontNames = new HashSet<>();
+            String[] fontsArray = themeAssetManager.list(Constants.THEME_DATA_ASSETS_FONTS);
+            if (fontsArray != null) {
+                for (String fileName : fontsArray) {
+                    fontNames.add(fileName);
+                    changed |= mThemeDataManifest.deploy(themeAssetManager,
+                            Constants.THEME_DATA_ASSETS_FONTS + "/" + fileName, new File(fontDir, fileName));
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
-                return false;
             }
-
-            // use fake-fonts overlay to refresh font cache
-            try {
-                SystemProperties.set(Constants.PROP_REFRESH_FONTS, "true");
-                mOverlayService.setEnabled(Constants.FAKE_FONTS_OVERLAY, true, userId);
-                Thread.sleep(1000);
-                mOverlayService.setEnabled(Constants.FAKE_FONTS_OVERLAY, false, userId);
-            } catch (RemoteException | InterruptedException e) {
-                e.printStackTrace();
+            changed |= mThemeDataManifest.retainFiles(fontDir, fontNames);
+            // same fonts as before, the font cache is still valid
+            if (changed && !mFontRefreshCoordinator.refresh(userId)) {
                 return false;
             }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
         }
+        IRecordApplied(plan, Constants.THEME_TARGET_FONTS, null);
+        return true;
+    }
 
-        // enable overlay
+    private boolean IEnableOverlaysStage(ThemeItem theme, ThemeApplyPlanner.Plan plan, List<String> overlayTargets,
+                                         Map<String, String> themeOverlays, boolean uninstallFlag, int userId) {
         int progress = 0;
         Intent extDataIntent = new Intent();
-        extDataIntent.putExtra("progressMax", overlayTargetPackages.size());
+        extDataIntent.putExtra("progressMax", overlayTargets.size());
+        Map<String, String> overlayLabels = new HashMap<>();
+        for (ThemeTarget ovt : theme.getOverlayTargets()) {
+            overlayLabels.put(ovt.getTargetId(), ovt.getLabel());
+        }
 
-        for (ThemeTarget ovt : overlayTargetPackages) {
+        for (String target : overlayTargets) {
             progress++;
-            if (!bundle.getBoolean(ovt.getTargetId(), true)) {
+            String overlayPackage = themeOverlays.get(target);
+            if (overlayPackage == null) {
                 continue;
             }
             extDataIntent.putExtra("progressVal", progress);
-            extDataIntent.putExtra("nowPackageLabel", ovt.getLabel());
+            extDataIntent.putExtra("nowPackageLabel", overlayLabels.get(target));
 
             setThemeApplyStatus(Constants.THEME_APPLYING_OVERLAY, theme, extDataIntent);
 
             try {
-                mOverlayService.setEnabled(themeOverlays.get(ovt.getTargetId()), true, userId);
+                mOverlayService.setEnabled(overlayPackage, true, userId);
             } catch (RemoteException e) {
                 e.printStackTrace();
                 return false;
             }
+            // the overlay of the previous theme for this target
+            String slot = ThemeApplyPlanner.OVERLAY_SLOT_PREFIX + target;
+            ThemeApplyState.Record oldRecord = mApplyState.get(slot);
+            IRecordApplied(plan, slot, overlayPackage);
+            if (oldRecord != null && !oldRecord.token.equals(overlayPackage)) {
+                IDisableOverlay(oldRecord.token, uninstallFlag, userId);
+            }
         }
+        return true;
+    }
 
+    private boolean ICleanupStage(ThemeItem theme, ThemeApplyPlanner.Plan plan, Map<String, String> themeOverlays,
+                                  boolean uninstallFlag, int userId) {
         setThemeApplyStatus(Constants.THEME_CLEANING, theme);
         // delete fonts and bootanimation
-        if (needCleanBootanim) {
+        if (plan.needsRemove(Constants.THEME_TARGET_BOOTANIMATION)) {
             File bootanimFile = new File(Constants.THEME_DATA_BOOTANIMATION_PATH + "/bootanimation.zip");
             File darkBootanimFile = new File(Constants.THEME_DATA_BOOTANIMATION_PATH + "/bootanimation-dark.zip");
-            bootanimFile.delete(); darkBootanimFile.delete();
+            mThemeDataManifest.delete(bootanimFile);
+            mThemeDataManifest.delete(darkBootanimFile);
+            mApplyState.remove(Constants.THEME_TARGET_BOOTANIMATION);
         }
-        if (needCleanFonts) {
-            File fontDir = new File(Constants.THEME_DATA_FONTS_PATH);
-            File[] existFontFiles = fontDir.listFiles();
-            if (existFontFiles != null) {
-                for (File fontFile : existFontFiles) fontFile.delete();
-            }
-            // use fake-fonts overlay to refresh font cache
-            try {
-                SystemProperties.set(Constants.PROP_REFRESH_FONTS, "true");
-                mOverlayService.setEnabled(Constants.FAKE_FONTS_OVERLAY, true, userId);
-                Thread.sleep(1000);
-                mOverlayService.setEnabled(Constants.FAKE_FONTS_OVERLAY, false, userId);
-            } catch (RemoteException | InterruptedException e) {
-                e.printStackTrace();
+        if (plan.needsRemove(Constants.THEME_TARGET_FONTS)) {
+            // nothing to refresh when there were no theme fonts left
+            if (mThemeDataManifest.retainFiles(new File(Constants.THEME_DATA_FONTS_PATH), Collections.emptySet()) &&
+                    !mFontRefreshCoordinator.refresh(userId)) {
                 return false;
             }
+            mApplyState.remove(Constants.THEME_TARGET_FONTS);
         }
+
         // disable and uninstall old overlays
-        List<PackageInfo> allPackages = mPackageManager.getInstalledPackages(0);
-        for (PackageInfo pkgInfo : allPackages) {
-            if (isThemeOverlayPackage(pkgInfo.packageName) && !themeOverlays.containsValue(pkgInfo.packageName)) {
+        for (String slot : plan.getRemovedSlots()) {
+            if (!ThemeApplyPlanner.isOverlaySlot(slot)) continue;
+            ThemeApplyState.Record record = mApplyState.get(slot);
+            if (record != null) IDisableOverlay(record.token, uninstallFlag, userId);
+            mApplyState.remove(slot);
+        }
+        if (plan.fullApply) {
+            // nothing was recorded, look for overlays of earlier applies
+            List<PackageInfo> allPackages = mPackageManager.getInstalledPackages(0);
+            for (PackageInfo pkgInfo : allPackages) {
+                if (isThemeOverlayPackage(pkgInfo.packageName) && !themeOverlays.containsValue(pkgInfo.packageName)) {
+                    IDisableOverlay(pkgInfo.packageName, uninstallFlag, userId);
+                }
+            }
+        }
+        return true;
+    }
+
+    private ThemeApplyPlanner.Plan IPlanTheme(ThemeItem theme, Bundle bundle) throws PackageManager.NameNotFoundException {
+        return IPlanTheme(theme, bundle, mPackageManager.getPackageInfo(theme.getPackageName(), 0).lastUpdateTime);
+    }
+
+    private ThemeApplyPlanner.Plan IPlanTheme(ThemeItem theme, Bundle bundle, long themeVersion) {
+        final boolean wallpaperCenterFlag = PreferenceManager.getDefaultSharedPreferences(this)
+                .getBoolean(Constants.PREFERENCES_FORCED_CENTER_WALLPAPER, false);
+        return ThemeApplyPlanner.plan(mApplyState, theme, themeVersion, bundle, wallpaperCenterFlag, this::IIsInPlace);
+    }
+
+    // checks that nothing outside replaced what an earlier apply left
+    private boolean IIsInPlace(String slot, ThemeApplyState.Record record) {
+        switch (slot) {
+            case Constants.THEME_TARGET_WALLPAPER:
+                return record.token.equals(String.valueOf(WallpaperManager.getInstance(this).getWallpaperId(WallpaperManager.FLAG_SYSTEM)));
+            case Constants.THEME_TARGET_LOCKSCREEN:
+                WallpaperManager wallpaperManager = WallpaperManager.getInstance(this);
+                if (record.token.startsWith(SHARED_LOCKSCREEN_TOKEN_PREFIX)) {
+                    // still sharing the very system wallpaper that was applied with it
+                    return wallpaperManager.getWallpaperId(WallpaperManager.FLAG_LOCK) < 0 &&
+                            record.token.equals(SHARED_LOCKSCREEN_TOKEN_PREFIX + wallpaperManager.getWallpaperId(WallpaperManager.FLAG_SYSTEM));
+                }
+                return record.token.equals(String.valueOf(wallpaperManager.getWallpaperId(WallpaperManager.FLAG_LOCK)));
+            case Constants.THEME_TARGET_RINGTONE:
+                return record.token.equals(IGetSoundToken(SoundUtil.TYPE_RINGTONE));
+            case Constants.THEME_TARGET_ALARM:
+                return record.token.equals(IGetSoundToken(SoundUtil.TYPE_ALARM));
+            case Constants.THEME_TARGET_NOTIFICATION:
+                return record.token.equals(IGetSoundToken(SoundUtil.TYPE_NOTIFICATION));
+            case Constants.THEME_TARGET_BOOTANIMATION:
+                return new File(Constants.THEME_DATA_BOOTANIMATION_PATH + "/bootanimation.zip").exists();
+            case Constants.THEME_TARGET_FONTS:
+                File[] fontFiles = new File(Constants.THEME_DATA_FONTS_PATH).listFiles();
+                return fontFiles != null && fontFiles.length > 0;
+            default:
                 try {
-                    mOverlayService.setEnabled(pkgInfo.packageName, false, userId);
+                    OverlayInfo info = mOverlayService.getOverlayInfo(record.token, UserHandle.myUserId());
+                    return info != null && info.isEnabled();
                 } catch (RemoteException e) {
-                    e.printStackTrace();
+                    return false;
                 }
-                if (uninstallFlag) {
-                    PackageUtil.uninstallPackage(this, pkgInfo.packageName, null);
+        }
+    }
+
+    // same file name, or different names with the same content. this runs before the
+    // stages start, so images of different lengths are told apart without reading them
+    private boolean IIsSameAsset(AssetManager assetManager, String path, String otherPath) {
+        if (path.equals(otherPath)) return true;
+        try {
+            if (FileUtil.getAssetLength(assetManager, path) != FileUtil.getAssetLength(assetManager, otherPath)) {
+                return false;
+            }
+            try (InputStream is = assetManager.open(path); InputStream otherIs = assetManager.open(otherPath)) {
+                return FileUtil.digest(is).equals(FileUtil.digest(otherIs));
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private String IGetSoundToken(int type) {
+        return String.valueOf(RingtoneManager.getActualDefaultRingtoneUri(this, type));
+    }
+
+    private void IRecordApplied(ThemeApplyPlanner.Plan plan, String slot, String token) {
+        mApplyState.put(slot, plan.getSource(slot), token);
+    }
+
+    private void IDisableOverlay(String packageName, boolean uninstall, int userId) {
+        try {
+            mOverlayService.setEnabled(packageName, false, userId);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+        if (uninstall) {
+            PackageUtil.uninstallPackage(this, packageName, null);
+        }
+    }
+
+    // stages overlays that aren't installed yet, identical installed ones go straight to themeOverlays
+    private boolean IStageOverlays(AssetManager themeAssetManager, List<String> overlayTargets,
+                                   Map<String, File> stagedOverlays, Map<String, String> stagedDigests, Map<String, String> themeOverlays) {
+        File stagingDir = new File(getCacheDir(), OVERLAY_STAGING_DIR);
+        for (String target : overlayTargets) {
+            String assetPath = Constants.THEME_DATA_ASSETS_OVERLAY + "/" + target;
+            File stagedOverlay = new File(stagingDir, target + ".apk");
+            try {
+                String digest;
+                try (InputStream is = themeAssetManager.open(assetPath)) {
+                    digest = FileUtil.digest(is);
+                }
+                String installedOverlay = IGetInstalledOverlay(digest);
+                if (installedOverlay != null) {
+                    themeOverlays.put(target, installedOverlay);
+                    continue;
                 }
+                FileUtil.createPath(stagedOverlay);
+                FileUtil.saveAsset(themeAssetManager, assetPath, stagedOverlay.getAbsolutePath(), false);
+                stagedDigests.put(target, digest);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
             }
+            stagedOverlays.put(target, stagedOverlay);
         }
+        return true;
+    }
+
+    // returns the package installed from an overlay with this digest if it wasn't changed since
+    private String IGetInstalledOverlay(String digest) {
+        String record = mOverlayDigests.getString(digest, null);
+        if (record == null) return null;
+        int separator = record.lastIndexOf('/');
+        String packageName = record.substring(0, separator);
+        try {
+            PackageInfo pi = mPackageManager.getPackageInfo(packageName, PackageManager.GET_META_DATA);
+            if (Long.toString(pi.lastUpdateTime).equals(record.substring(separator + 1)) && isThemeOverlayPackage(pi)) {
+                return packageName;
+            }
+        } catch (PackageManager.NameNotFoundException e) {
+            // uninstalled since
+        }
+        mOverlayDigests.edit().remove(digest).apply();
+        return null;
+    }
 
+    private void IRecordInstalledOverlay(String digest, String packageName) {
+        try {
+            PackageInfo pi = mPackageManager.getPackageInfo(packageName, 0);
+            mOverlayDigests.edit().putString(digest, packageName + "/" + pi.lastUpdateTime).apply();
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.w(TAG, "Installed overlay " + packageName + " not found");
+        }
+    }
+
+    // installs all staged overlays in one multi-package session and maps each back to its target
+    private boolean IInstallOverlays(Map<String, File> stagedOverlays, Map<String, String> stagedDigests, Map<String, String> themeOverlays) {
+        if (stagedOverlays.isEmpty()) return true;
+
+        // the session result doesn't name the child packages, read them from the staged apks
+        Map<String, String> overlayPackages = new HashMap<>();
+        for (Map.Entry<String, File> stagedOverlay : stagedOverlays.entrySet()) {
+            PackageInfo archiveInfo = mPackageManager.getPackageArchiveInfo(stagedOverlay.getValue().getAbsolutePath(), 0);
+            if (archiveInfo == null) {
+                Log.e(TAG, "Invalid overlay package for " + stagedOverlay.getKey());
+                return false;
+            }
+            overlayPackages.put(stagedOverlay.getKey(), archiveInfo.packageName);
+        }
+
+        final AtomicBoolean installResult = new AtomicBoolean();
+        final CountDownLatch installLatch = new CountDownLatch(1);
+        PackageUtil.installPackages(this, new ArrayList<>(stagedOverlays.values()), (code, message) -> {
+            if (code != PackageInstaller.STATUS_SUCCESS) {
+                Log.e(TAG, "Failed to install overlays: " + message);
+            }
+            installResult.set(code == PackageInstaller.STATUS_SUCCESS);
+            installLatch.countDown();
+        });
+        try {
+            installLatch.await();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            return false;
+        }
+        if (!installResult.get()) {
+            return false;
+        }
+
+        for (Map.Entry<String, String> overlayPackage : overlayPackages.entrySet()) {
+            // check installed package for security reasons
+            if (!isThemeOverlayPackage(overlayPackage.getValue())) {
+                Log.w(TAG, "Package " + overlayPackage.getValue() + " is not a verified overlay package!");
+            } else {
+                themeOverlays.put(overlayPackage.getKey(), overlayPackage.getValue());
+                IRecordInstalledOverlay(stagedDigests.get(overlayPackage.getKey()), overlayPackage.getValue());
+            }
+        }
         return true;
     }
 
@@ -358,16 +647,21 @@ public class ThemeManageService extends Service {
         boolean ret = false;
         try {
             PackageInfo pi = mPackageManager.getPackageInfo(packageName, PackageManager.GET_META_DATA);
-            ApplicationInfo ai = pi.applicationInfo;
-            ret =  pi.isOverlayPackage() &&
-                    ((ai.flags & ApplicationInfo.FLAG_HAS_CODE) == 0) && ai.metaData != null &&
-                    ((ai.metaData.getBoolean(Constants.THEME_DATA_OVERLAY_FLAG, false)));
+            ret = isThemeOverlayPackage(pi);
         } catch (Exception e) {
             Log.e(TAG, "check package " + packageName + " failed");
         }
         return ret;
     }
 
+    // pi must be queried with GET_META_DATA
+    private static boolean isThemeOverlayPackage(PackageInfo pi) {
+        ApplicationInfo ai = pi.applicationInfo;
+        return pi.isOverlayPackage() &&
+                ((ai.flags & ApplicationInfo.FLAG_HAS_CODE) == 0) && ai.metaData != null &&
+                ((ai.metaData.getBoolean(Constants.THEME_DATA_OVERLAY_FLAG, false)));
+    }
+
     private void setThemeApplyStatus(String action, ThemeBase theme) {
         setThemeApplyStatus(action, theme, null);
     }
@@ -385,7 +679,8 @@ public class ThemeManageService extends Service {
         notifyThemeApplyStatus();
     }
 
-    private void notifyThemeApplyStatus() {
+    // stages report from several threads, each status is delivered once and in order
+    private synchronized void notifyThemeApplyStatus() {
         while (!mApplyStatusQueue.isEmpty() && !mApplyStatusListenerList.isEmpty()) {
             Intent data = mApplyStatusQueue.peek();
             sendBroadcastAsUser(data, UserHandle.CURRENT_OR_SELF);
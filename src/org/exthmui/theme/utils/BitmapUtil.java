@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2019-2020 The exTHmUI Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.exthmui.theme.utils;
+
+import android.content.res.AssetManager;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.drawable.Drawable;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+public class BitmapUtil {
+
+    private static final String TAG = "BitmapUtil";
+
+    // rows decoded at once when scaling a region down
+    private static final int DECODE_STRIP_ROWS = 256;
+
+    // largest power of two that keeps the decoded image at least as big as requested
+    public static int calculateInSampleSize(int srcWidth, int srcHeight, int reqWidth, int reqHeight) {
+        int inSampleSize = 1;
+        if (reqWidth <= 0 || reqHeight <= 0) return inSampleSize;
+        while (srcWidth / (inSampleSize * 2) >= reqWidth && srcHeight / (inSampleSize * 2) >= reqHeight) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
+    public static Bitmap decodeSampledResource(Resources resources, int resId, int reqWidth, int reqHeight) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeResource(resources, resId, options);
+        if (options.outWidth > 0 && options.outHeight > 0) {
+            options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight, reqWidth, reqHeight);
+            options.inJustDecodeBounds = false;
+            Bitmap bitmap = BitmapFactory.decodeResource(resources, resId, options);
+            if (bitmap != null) return bitmap;
+        }
+        // not a bitmap resource, e.g. a vector drawable
+        Drawable drawable = resources.getDrawable(resId, null);
+        return drawableToBitmap(drawable, reqWidth, reqHeight);
+    }
+
+    public static Bitmap decodeSampledAsset(AssetManager assetManager, String path, int reqWidth, int reqHeight) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        try (InputStream is = assetManager.open(path)) {
+            BitmapFactory.decodeStream(is, null, options);
+        }
+        options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight, reqWidth, reqHeight);
+        options.inJustDecodeBounds = false;
+        try (InputStream is = assetManager.open(path)) {
+            return BitmapFactory.decodeStream(is, null, options);
+        }
+    }
+
+    // decodes region of the asset scaled down to reqWidth x reqHeight, or as is if it's smaller.
+    // the region is decoded in strips drawn into the result, so memory follows the requested
+    // size rather than the image size
+    public static Bitmap decodeAssetRegion(AssetManager assetManager, String path, Rect region,
+                                           int reqWidth, int reqHeight) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = calculateInSampleSize(region.width(), region.height(), reqWidth, reqHeight);
+        boolean scale = region.width() > reqWidth && region.height() > reqHeight;
+
+        BitmapRegionDecoder decoder = null;
+        try (InputStream is = assetManager.open(path)) {
+            decoder = BitmapRegionDecoder.newInstance(is, false);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to open region decoder for " + path, e);
+        }
+        if (decoder == null) {
+            // format without region decoding support
+            return decodeSampledAssetRegion(assetManager, path, region, options, scale ? reqWidth : 0, reqHeight);
+        }
+
+        try {
+            if (!scale) return decoder.decodeRegion(region, options);
+
+            Bitmap bitmap = Bitmap.createBitmap(reqWidth, reqHeight, Bitmap.Config.ARGB_8888);
+            Canvas canvas = new Canvas(bitmap);
+            Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+            float scaleY = (float) reqHeight / region.height();
+            int stripHeight = DECODE_STRIP_ROWS * options.inSampleSize;
+            Rect strip = new Rect();
+            RectF dst = new RectF();
+            for (int top = region.top; top < region.bottom; top += stripHeight) {
+                strip.set(region.left, top, region.right, Math.min(top + stripHeight, region.bottom));
+                Bitmap part = decoder.decodeRegion(strip, options);
+                if (part == null) {
+                    bitmap.recycle();
+                    return null;
+                }
+                dst.set(0, (strip.top - region.top) * scaleY, reqWidth, (strip.bottom - region.top) * scaleY);
+                canvas.drawBitmap(part, null, dst, paint);
+                part.recycle();
+            }
+            return bitmap;
+        } finally {
+            decoder.recycle();
+        }
+    }
+
+    // decodes the whole asset sampled down, then cuts region out of it and scales it to
+    // reqWidth x reqHeight unless reqWidth is 0
+    private static Bitmap decodeSampledAssetRegion(AssetManager assetManager, String path, Rect region,
+                                                   BitmapFactory.Options options, int reqWidth, int reqHeight) throws IOException {
+        Bitmap bitmap;
+        try (InputStream is = assetManager.open(path)) {
+            bitmap = BitmapFactory.decodeStream(is, null, options);
+        }
+        if (bitmap == null) return null;
+        int sample = options.inSampleSize;
+        Rect sampled = new Rect(region.left / sample, region.top / sample,
+                Math.min(region.right / sample, bitmap.getWidth()), Math.min(region.bottom / sample, bitmap.getHeight()));
+        if (sampled.width() <= 0 || sampled.height() <= 0) {
+            bitmap.recycle();
+            return null;
+        }
+        Matrix matrix = null;
+        if (reqWidth > 0) {
+            matrix = new Matrix();
+            matrix.setScale((float) reqWidth / sampled.width(), (float) reqHeight / sampled.height());
+        }
+        Bitmap cropped = Bitmap.createBitmap(bitmap, sampled.left, sampled.top, sampled.width(), sampled.height(), matrix, true);
+        if (cropped != bitmap) bitmap.recycle();
+        return cropped;
+    }
+
+    // reads only the image header, returns false if the asset can't be decoded
+    public static boolean decodeAssetBounds(AssetManager assetManager, String path, int[] outSize) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        try (InputStream is = assetManager.open(path)) {
+            BitmapFactory.decodeStream(is, null, options);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read bounds of " + path, e);
+            return false;
+        }
+        outSize[0] = options.outWidth;
+        outSize[1] = options.outHeight;
+        return options.outWidth > 0 && options.outHeight > 0;
+    }
+
+    public static Bitmap drawableToBitmap(Drawable drawable, int width, int height) {
+        if (drawable == null || width <= 0 || height <= 0) return null;
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        drawable.setBounds(0, 0, width, height);
+        drawable.draw(canvas);
+        return bitmap;
+    }
+
+    public static Bitmap decodeFile(File file) {
+        if (!file.exists()) return null;
+        return BitmapFactory.decodeFile(file.getAbsolutePath());
+    }
+
+    public static void saveBitmap(Bitmap bitmap, File file) {
+        FileUtil.createPath(file);
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmpFile)) {
+            bitmap.compress(Bitmap.CompressFormat.WEBP, 90, fos);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to save bitmap to " + file, e);
+            tmpFile.delete();
+            return;
+        }
+        if (!tmpFile.renameTo(file)) {
+            tmpFile.delete();
+        }
+    }
+}
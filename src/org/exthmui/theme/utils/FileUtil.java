@@ -16,36 +16,109 @@
 
 package org.exthmui.theme.utils;
 
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+import android.system.ErrnoException;
+import android.system.Os;
+
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 public class FileUtil {
 
     private static final String TAG = "FileUtil";
 
+    private static final int BUFFER_SIZE = 65536;
+    private static final int THEME_DATA_MODE = 0644;
+
     public static void saveInputStream(String path, InputStream inputStream, boolean isThemeData) throws IOException {
         int index;
-        byte[] bytes = new byte[1024];
-        FileOutputStream fos = new FileOutputStream(path);
+        byte[] bytes = new byte[BUFFER_SIZE];
+        try (InputStream is = inputStream; FileOutputStream fos = new FileOutputStream(path)) {
+            while ((index = is.read(bytes)) != -1) {
+                fos.write(bytes, 0, index);
+            }
+            fos.getFD().sync();
+        }
+        if (isThemeData) chmodThemeData(path);
+    }
 
-        while ((index = inputStream.read(bytes)) != -1) {
-            fos.write(bytes, 0, index);
-            fos.flush();
+    // uncompressed assets are copied channel to channel, compressed ones through saveInputStream
+    public static void saveAsset(AssetManager assetManager, String assetPath, String path, boolean isThemeData) throws IOException {
+        AssetFileDescriptor afd;
+        try {
+            afd = assetManager.openFd(assetPath);
+        } catch (FileNotFoundException e) {
+            // openFd fails for compressed assets, they have no plain region in the apk
+            saveInputStream(path, assetManager.open(assetPath), isThemeData);
+            return;
+        }
+        try (AssetFileDescriptor fd = afd;
+             FileInputStream fis = fd.createInputStream();
+             FileOutputStream fos = new FileOutputStream(path)) {
+            FileChannel in = fis.getChannel();
+            FileChannel out = fos.getChannel();
+            in.position(fd.getStartOffset());
+            long length = fd.getLength();
+            long position = 0;
+            while (position < length) {
+                long transferred = out.transferFrom(in, position, length - position);
+                if (transferred <= 0) throw new EOFException("Unexpected end of asset " + assetPath);
+                position += transferred;
+            }
+            fos.getFD().sync();
         }
+        if (isThemeData) chmodThemeData(path);
+    }
 
-        fos.close();
-        inputStream.close();
-        if (isThemeData) {
-            try {
-                Runtime.getRuntime().exec("chmod 0644 " + path).waitFor();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+    // length of the asset content without reading it
+    public static long getAssetLength(AssetManager assetManager, String assetPath) throws IOException {
+        try (AssetFileDescriptor afd = assetManager.openFd(assetPath)) {
+            return afd.getLength();
+        } catch (FileNotFoundException e) {
+            // compressed assets have no fd, their stream still knows the full length
+            try (InputStream is = assetManager.open(assetPath)) {
+                return is.available();
             }
         }
     }
 
+    private static void chmodThemeData(String path) throws IOException {
+        try {
+            Os.chmod(path, THEME_DATA_MODE);
+        } catch (ErrnoException e) {
+            throw e.rethrowAsIOException();
+        }
+    }
+
+    // hex SHA-256 of the stream content, the stream is consumed but not closed
+    public static String digest(InputStream inputStream) throws IOException {
+        MessageDigest messageDigest;
+        try {
+            messageDigest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        int index;
+        byte[] bytes = new byte[BUFFER_SIZE];
+        while ((index = inputStream.read(bytes)) != -1) {
+            messageDigest.update(bytes, 0, index);
+        }
+        StringBuilder digest = new StringBuilder();
+        for (byte b : messageDigest.digest()) {
+            digest.append(String.format("%02x", b));
+        }
+        return digest.toString();
+    }
+
     public static void createPath(File file) {
         File parent = file.getParentFile();
 
@@ -25,52 +25,68 @@ import android.content.IntentSender;
 import android.content.pm.PackageInstaller;
 import android.util.Log;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.List;
 
 public class PackageUtil {
 
     private static final String TAG = "PackageUtil";
 
-    public static void installPackage(Context context, InputStream inputStream, final PackageInstallerCallback callback) {
-        String installId = "install_" + System.currentTimeMillis();
+    // stages each apk into a child of one multi-package session, they are committed atomically
+    public static void installPackages(Context context, List<File> apkFiles, final MultiPackageInstallerCallback callback) {
+        String installId = "install_multi_" + System.currentTimeMillis();
         PackageInstaller packageInstaller = context.getPackageManager().getPackageInstaller();
 
-        context.registerReceiver(new BroadcastReceiver() {
+        BroadcastReceiver receiver = new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
                 context.unregisterReceiver(this);
                 int statusCode = intent.getIntExtra(PackageInstaller.EXTRA_STATUS, PackageInstaller.STATUS_FAILURE);
-
-                String packageName = intent.getStringExtra(PackageInstaller.EXTRA_PACKAGE_NAME);
+                String message = intent.getStringExtra(PackageInstaller.EXTRA_STATUS_MESSAGE);
 
                 if (callback == null) return;
-                callback.onResponse(packageName, statusCode);
+                callback.onResponse(statusCode, message);
             }
-        }, new IntentFilter(installId));
+        };
+        context.registerReceiver(receiver, new IntentFilter(installId));
 
-        PackageInstaller.SessionParams sessionParams = new PackageInstaller.SessionParams(
+        PackageInstaller.SessionParams parentParams = new PackageInstaller.SessionParams(
                 PackageInstaller.SessionParams.MODE_FULL_INSTALL);
+        parentParams.setMultiPackage();
 
-        // install
+        int parentSessionId = -1;
+        int childSessionId = -1;
         try {
-            // set params
-            int sessionId = packageInstaller.createSession(sessionParams);
-            PackageInstaller.Session session = packageInstaller.openSession(sessionId);
-            OutputStream outputStream = session.openWrite(installId, 0, -1);
-
-            byte[] buffer = new byte[65536];
-            int tmpByte;
-
-            while ((tmpByte = inputStream.read(buffer)) != -1) {
-                outputStream.write(buffer, 0, tmpByte);
+            parentSessionId = packageInstaller.createSession(parentParams);
+            try (PackageInstaller.Session parentSession = packageInstaller.openSession(parentSessionId)) {
+                byte[] buffer = new byte[65536];
+                for (File apkFile : apkFiles) {
+                    childSessionId = packageInstaller.createSession(new PackageInstaller.SessionParams(
+                            PackageInstaller.SessionParams.MODE_FULL_INSTALL));
+                    try (PackageInstaller.Session childSession = packageInstaller.openSession(childSessionId);
+                         InputStream inputStream = new FileInputStream(apkFile);
+                         OutputStream outputStream = childSession.openWrite(apkFile.getName(), 0, apkFile.length())) {
+                        int tmpByte;
+                        while ((tmpByte = inputStream.read(buffer)) != -1) {
+                            outputStream.write(buffer, 0, tmpByte);
+                        }
+                        childSession.fsync(outputStream);
+                    }
+                    parentSession.addChildSessionId(childSessionId);
+                    childSessionId = -1;
+                }
+                parentSession.commit(createIntentSender(context, parentSessionId, installId));
             }
-
-            session.fsync(outputStream);
-            outputStream.close();
-            session.commit(createIntentSender(context, sessionId, installId));
         } catch (Exception e) {
-            Log.e(TAG, "Failed to install package");
+            Log.e(TAG, "Failed to install packages", e);
+            // abandoning the parent abandons the children added to it
+            if (childSessionId != -1) packageInstaller.abandonSession(childSessionId);
+            if (parentSessionId != -1) packageInstaller.abandonSession(parentSessionId);
+            context.unregisterReceiver(receiver);
+            if (callback != null) callback.onResponse(PackageInstaller.STATUS_FAILURE, e.getMessage());
         }
     }
 
@@ -100,4 +116,8 @@ public class PackageUtil {
         void onResponse(String packageName, int code);
     }
 
+    public interface MultiPackageInstallerCallback {
+        void onResponse(int code, String message);
+    }
+
 }
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2019-2020 The exTHmUI Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.exthmui.theme.utils;
+
+import android.content.ComponentCallbacks2;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.res.Resources;
+import android.util.LruCache;
+
+public class ResourcesCache {
+
+    private static final int MAX_SIZE = 8;
+
+    private static final LruCache<String, Entry> sCache = new LruCache<>(MAX_SIZE);
+    private static int sHitCount;
+    private static int sMissCount;
+
+    // entries of other versions of the package are replaced
+    public static Resources get(PackageManager pm, PackageInfo pkgInfo) throws PackageManager.NameNotFoundException {
+        Resources resources = lookup(pkgInfo.packageName, pkgInfo.lastUpdateTime);
+        if (resources != null) return resources;
+        return create(pm, pkgInfo.applicationInfo, pkgInfo.lastUpdateTime);
+    }
+
+    public static synchronized void invalidate(String packageName) {
+        sCache.remove(packageName);
+    }
+
+    public static synchronized void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            sCache.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            sCache.trimToSize(MAX_SIZE / 2);
+        }
+    }
+
+    public static synchronized int getHitCount() {
+        return sHitCount;
+    }
+
+    public static synchronized int getMissCount() {
+        return sMissCount;
+    }
+
+    public static synchronized String dump() {
+        return "size=" + sCache.size() + "/" + MAX_SIZE + " hits=" + sHitCount + " misses=" + sMissCount;
+    }
+
+    private static synchronized Resources lookup(String packageName, long version) {
+        Entry entry = sCache.get(packageName);
+        if (entry != null && entry.version == version) {
+            sHitCount++;
+            return entry.resources;
+        }
+        sMissCount++;
+        return null;
+    }
+
+    private static Resources create(PackageManager pm, ApplicationInfo ai, long version) throws PackageManager.NameNotFoundException {
+        // build the AssetManager outside the lock, it's the slow part
+        Resources resources = pm.getResourcesForApplication(ai);
+        synchronized (ResourcesCache.class) {
+            sCache.put(ai.packageName, new Entry(resources, version));
+        }
+        return resources;
+    }
+
+    private static class Entry {
+        final Resources resources;
+        final long version;
+
+        Entry(Resources resources, long version) {
+            this.resources = resources;
+            this.version = version;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2019-2020 The exTHmUI Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.exthmui.theme.utils;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import org.exthmui.theme.R;
+import org.exthmui.theme.services.ThemeDataService;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Loads theme card images off the main thread. Thumbnails are decoded at
+ * card size by ThemeDataService, which also keeps them on disk, and are
+ * kept here in a memory LRU. Must be used from the main thread.
+ */
+public class ThemeImageLoader {
+
+    private final ThemeDataService.ThemeDataBinder mThemeDataBinder;
+    private final LruCache<String, Bitmap> mMemoryCache;
+    private final ExecutorService mExecutor;
+    private final Handler mMainHandler;
+    private final Map<ImageView, Request> mRequests;
+    private final int mWidth;
+    private final int mHeight;
+
+    public ThemeImageLoader(Context context, ThemeDataService.ThemeDataBinder binder) {
+        mThemeDataBinder = binder;
+        mHeight = context.getResources().getDimensionPixelSize(R.dimen.theme_card_image_height);
+        mWidth = mHeight / 16 * 10;
+        mMemoryCache = new LruCache<String, Bitmap>((int) (Runtime.getRuntime().maxMemory() / 8)) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getByteCount();
+            }
+        };
+        mExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        mMainHandler = new Handler(Looper.getMainLooper());
+        mRequests = new WeakHashMap<>();
+    }
+
+    public void load(ImageView view, String packageName) {
+        cancel(view);
+        Bitmap bitmap = mMemoryCache.get(packageName);
+        if (bitmap != null) {
+            view.setImageBitmap(bitmap);
+            return;
+        }
+
+        view.setImageDrawable(null);
+        Request request = new Request();
+        request.future = mExecutor.submit(() -> {
+            Bitmap thumbnail = mThemeDataBinder.getThemeThumbnail(packageName, mWidth, mHeight);
+            if (thumbnail == null || Thread.currentThread().isInterrupted()) return;
+            mMainHandler.post(() -> {
+                mMemoryCache.put(packageName, thumbnail);
+                // the holder may have been recycled for another theme meanwhile
+                if (mRequests.get(view) != request) return;
+                mRequests.remove(view);
+                view.setImageBitmap(thumbnail);
+            });
+        });
+        mRequests.put(view, request);
+    }
+
+    public void cancel(ImageView view) {
+        Request request = mRequests.remove(view);
+        if (request != null) {
+            request.future.cancel(true);
+        }
+    }
+
+    public void invalidate(String packageName) {
+        mMemoryCache.remove(packageName);
+    }
+
+    public void shutdown() {
+        mExecutor.shutdownNow();
+        mRequests.clear();
+        mMemoryCache.evictAll();
+    }
+
+    private static class Request {
+        Future<?> future;
+    }
+}
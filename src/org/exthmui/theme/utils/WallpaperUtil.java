@@ -18,11 +18,14 @@ package org.exthmui.theme.utils;
 
 import android.app.WallpaperManager;
 import android.content.Context;
+import android.content.res.AssetManager;
 import android.graphics.Bitmap;
 import android.graphics.Rect;
 import android.util.DisplayMetrics;
 import android.util.Log;
 
+import java.io.IOException;
+
 public class WallpaperUtil {
 
     private static final String TAG = "WallpaperUtil";
@@ -32,19 +35,7 @@ public class WallpaperUtil {
         WallpaperManager wallpaperManager = WallpaperManager.getInstance(context);
 
         DisplayMetrics dm = context.getResources().getDisplayMetrics();
-        Rect visibleCropHint = new Rect();
-        if (center)
-        {
-            double ratio = (double) dm.heightPixels / dm.widthPixels;
-            double imageRatio = (double) bitmap.getHeight() / bitmap.getWidth();
-            if (ratio < imageRatio) {
-                int offset = (int) (bitmap.getHeight() - bitmap.getWidth() * ratio) / 2;
-                visibleCropHint.set(0, offset, bitmap.getWidth(), bitmap.getHeight() - offset);
-            } else {
-                int offset = (int) (bitmap.getWidth() - bitmap.getHeight() / ratio) / 2;
-                visibleCropHint.set(offset, 0, bitmap.getWidth() - offset, bitmap.getHeight());
-            }
-        }
+        Rect visibleCropHint = getCenterCrop(bitmap.getWidth(), bitmap.getHeight(), dm.widthPixels, dm.heightPixels);
 
         try {
             wallpaperManager.setBitmap(bitmap, center ? visibleCropHint : null,true, flag);
@@ -53,6 +44,50 @@ public class WallpaperUtil {
         }
     }
 
+    // decodes no more of the asset than the display shows, so memory follows the display size
+    public static boolean setBackground(Context context, AssetManager assetManager, String path,
+                                        int flag, boolean center) throws IOException {
+        int[] size = new int[2];
+        if (!BitmapUtil.decodeAssetBounds(assetManager, path, size)) return false;
+
+        DisplayMetrics dm = context.getResources().getDisplayMetrics();
+        int width = dm.widthPixels;
+        int height = dm.heightPixels;
+        if (!center) {
+            // launchers may ask for a larger wallpaper to scroll it
+            WallpaperManager wallpaperManager = WallpaperManager.getInstance(context);
+            width = Math.max(width, wallpaperManager.getDesiredMinimumWidth());
+            height = Math.max(height, wallpaperManager.getDesiredMinimumHeight());
+        }
+        // the system crops the rest away anyway, an image of another aspect ratio
+        // would otherwise be decoded far larger than width x height
+        Bitmap bitmap = BitmapUtil.decodeAssetRegion(assetManager, path,
+                getCenterCrop(size[0], size[1], width, height), width, height);
+        if (bitmap == null) return false;
+
+        try {
+            setBackground(context, bitmap, flag, center);
+        } finally {
+            bitmap.recycle();
+        }
+        return true;
+    }
+
+    // the largest centered rect of a width x height image with the aspect ratio of cropWidth x cropHeight
+    private static Rect getCenterCrop(int width, int height, int cropWidth, int cropHeight) {
+        Rect crop = new Rect();
+        double ratio = (double) cropHeight / cropWidth;
+        double imageRatio = (double) height / width;
+        if (ratio < imageRatio) {
+            int offset = (int) (height - width * ratio) / 2;
+            crop.set(0, offset, width, height - offset);
+        } else {
+            int offset = (int) (width - height / ratio) / 2;
+            crop.set(offset, 0, width - offset, height);
+        }
+        return crop;
+    }
+
 
     public static void setWallpaper(Context context, Bitmap bitmap, boolean center) {
         setBackground(context, bitmap, WallpaperManager.FLAG_SYSTEM, center);
@@ -61,4 +96,17 @@ public class WallpaperUtil {
     public static void setLockScreen(Context context, Bitmap bitmap, boolean center) {
         setBackground(context, bitmap, WallpaperManager.FLAG_LOCK, center);
     }
+
+    public static boolean setWallpaper(Context context, AssetManager assetManager, String path, boolean center) throws IOException {
+        return setBackground(context, assetManager, path, WallpaperManager.FLAG_SYSTEM, center);
+    }
+
+    public static boolean setLockScreen(Context context, AssetManager assetManager, String path, boolean center) throws IOException {
+        return setBackground(context, assetManager, path, WallpaperManager.FLAG_LOCK, center);
+    }
+
+    // one decode and one set call for both, the lockscreen then shows the system wallpaper
+    public static boolean setWallpaperAndLockScreen(Context context, AssetManager assetManager, String path, boolean center) throws IOException {
+        return setBackground(context, assetManager, path, WallpaperManager.FLAG_SYSTEM | WallpaperManager.FLAG_LOCK, center);
+    }
 }
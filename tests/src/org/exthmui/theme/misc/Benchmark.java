@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2019-2020 The exTHmUI Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.exthmui.theme.misc;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Minimal timing helper for the JVM benchmarks. Times are the median of
+ * several runs after warming up, and are only printed, never asserted, so
+ * a slow build machine can't fail the build.
+ */
+public class Benchmark {
+
+    public interface Task {
+        void run() throws Exception;
+    }
+
+    private final String mName;
+    private final int mWarmupRuns;
+    private final int mRuns;
+
+    public Benchmark(String name, int warmupRuns, int runs) {
+        mName = name;
+        mWarmupRuns = warmupRuns;
+        mRuns = runs;
+    }
+
+    // median nanoseconds of one run of task
+    public long measure(Task task) throws Exception {
+        for (int i = 0; i < mWarmupRuns; i++) task.run();
+        long[] times = new long[mRuns];
+        for (int i = 0; i < mRuns; i++) {
+            long start = System.nanoTime();
+            task.run();
+            times[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(times);
+        return times[mRuns / 2];
+    }
+
+    // prints baseline against candidate and returns the speedup
+    public double compare(String baselineName, Task baseline, String candidateName, Task candidate) throws Exception {
+        long baselineTime = measure(baseline);
+        long candidateTime = measure(candidate);
+        double speedup = (double) baselineTime / candidateTime;
+        System.out.println(String.format(Locale.US, "%s: %s %.3f ms, %s %.3f ms, %.1fx",
+                mName, baselineName, baselineTime / 1e6, candidateName, candidateTime / 1e6, speedup));
+        return speedup;
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2019-2020 The exTHmUI Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.exthmui.theme.misc;
+
+import org.exthmui.theme.models.ThemeItem;
+import org.exthmui.theme.models.ThemeTarget;
+import org.junit.Test;
+import org.kxml2.io.KXmlParser;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The table-driven ThemeDataParser against the per-section overlay, sounds
+ * and background parsers it replaced, on the same document.
+ */
+public class ThemeDataParserBenchmark {
+
+    private static final int DISPLAY_WIDTH = 1080;
+    private static final int DISPLAY_HEIGHT = 2340;
+
+    @Test
+    public void tableDrivenAgainstPerSectionParsers() throws Exception {
+        for (int targetCount : new int[] {20, 200}) {
+            // compiled xml resources have no whitespace between tags, the old parsers
+            // mistook it for element text
+            String themeData = ThemeItemCacheBenchmark.buildThemeData(targetCount).replaceAll(">\\s+<", "><");
+
+            ThemeItem legacyTheme = new ThemeItem("legacy");
+            List<ThemeTarget> legacyTargets = new ArrayList<>();
+            parseLegacy(themeData, legacyTheme, legacyTargets);
+            ThemeItem theme = new ThemeItem("table");
+            List<ThemeTarget> targets = new ArrayList<>();
+            parse(themeData, theme, targets);
+            assertEquals(legacyTargets.size(), targets.size());
+            assertEquals(legacyTheme.getRingtone(), theme.getRingtone());
+            assertEquals(legacyTheme.getWallpaper(), theme.getWallpaper());
+
+            new Benchmark("theme_data.xml with " + targetCount + " targets", 200, 500).compare(
+                    "per-section", () -> parseLegacy(themeData, new ThemeItem("legacy"), new ArrayList<>()),
+                    "table-driven", () -> parse(themeData, new ThemeItem("table"), new ArrayList<>()));
+        }
+    }
+
+    private static ThemeTarget resolve(String packageName) {
+        if (packageName.trim().isEmpty()) return null;
+        return new ThemeTarget(packageName, ThemeTarget.TYPE_APPLICATIONS);
+    }
+
+    private static void parse(String themeData, ThemeItem theme, List<ThemeTarget> overlayTargets) throws Exception {
+        XmlPullParser xml = new KXmlParser();
+        xml.setInput(new StringReader(themeData));
+        new ThemeDataParser(ThemeDataParserBenchmark::resolve,
+                new WallpaperSelector(DISPLAY_WIDTH, DISPLAY_HEIGHT, null)).parse(xml, theme, overlayTargets);
+    }
+
+    private static void parseLegacy(String themeData, ThemeItem theme, List<ThemeTarget> overlayTargets) throws Exception {
+        XmlPullParser xml = new KXmlParser();
+        xml.setInput(new StringReader(themeData));
+        int eventType = xml.getEventType();
+        while (eventType != XmlPullParser.END_DOCUMENT) {
+            if (eventType == XmlPullParser.START_TAG) {
+                switch (xml.getName().toLowerCase()) {
+                    case Constants.THEME_DATA_XML_OVERLAY:
+                        overlayParser(xml, overlayTargets);
+                        break;
+                    case Constants.THEME_DATA_XML_SOUNDS:
+                        soundsParser(xml, theme);
+                        break;
+                    case Constants.THEME_DATA_XML_BACKGROUNDS:
+                        backgroundParser(xml, theme);
+                        break;
+                }
+            }
+            eventType = xml.next();
+        }
+    }
+
+    // the parsers below are the ones ThemeDataService used before ThemeDataParser, on
+    // XmlPullParser instead of XmlResourceParser. the overlay parser's continue, which hung
+    // on unresolved targets and whitespace, is a break so it terminates on this document
+
+    private static void overlayParser(XmlPullParser xml, List<ThemeTarget> list) throws XmlPullParserException, IOException {
+        int eventType = xml.next();
+        int tagNum = 0;
+        String tagName = null;
+        boolean overlaySwitchable = true;
+        while (eventType != XmlPullParser.END_TAG || tagNum > 0) {
+            switch (eventType) {
+                case XmlPullParser.START_TAG:
+                    tagNum++;
+                    tagName = xml.getName().toLowerCase();
+                    overlaySwitchable = true;
+                    if (Constants.THEME_DATA_XML_OVERLAY_TARGET.equals(tagName)) {
+                        for (int i = 0; i < xml.getAttributeCount(); i++) {
+                            if (xml.getAttributeName(i).equals(Constants.THEME_DATA_XML_OVERLAY_TARGET_ATTR_SWITCHABLE)) {
+                                overlaySwitchable = !"false".equals(xml.getAttributeValue(i));
+                                break;
+                            }
+                        }
+                    }
+                    break;
+                case XmlPullParser.TEXT:
+                    if (Constants.THEME_DATA_XML_OVERLAY_TARGET.equals(tagName)) {
+                        ThemeTarget overlayTarget = resolve(xml.getText());
+                        if (overlayTarget == null) break;
+                        overlayTarget.setSwitchable(overlaySwitchable);
+                        list.add(overlayTarget);
+                    }
+                    break;
+                case XmlPullParser.END_TAG:
+                    tagNum--;
+                    break;
+            }
+            eventType = xml.next();
+        }
+    }
+
+    private static void soundsParser(XmlPullParser xml, ThemeItem theme) throws XmlPullParserException, IOException {
+        int eventType = xml.next();
+        String tagName = null;
+        int tagNum = 0;
+        String title = null;
+        while (eventType != XmlPullParser.END_TAG || tagNum > 0) {
+            switch (eventType) {
+                case XmlPullParser.START_TAG:
+                    tagName = xml.getName().toLowerCase();
+                    tagNum++;
+                    title = null;
+                    for (int i = 0; i < xml.getAttributeCount(); i++) {
+                        if (xml.getAttributeName(i).equals(Constants.THEME_DATA_XML_SOUND_TITLE)) {
+                            title = xml.getAttributeValue(i);
+                            break;
+                        }
+                    }
+                    break;
+                case XmlPullParser.TEXT:
+                    if (tagName == null) break;
+                    switch (tagName) {
+                        case Constants.THEME_DATA_XML_SOUND_RINGTONE:
+                            theme.setRingtone(xml.getText());
+                            theme.setRingtoneTitle(title);
+                            break;
+                        case Constants.THEME_DATA_XML_SOUND_ALARM:
+                            theme.setAlarmSound(xml.getText());
+                            theme.setAlarmTitle(title);
+                            break;
+                        case Constants.THEME_DATA_XML_SOUND_NOTIFICATION:
+                            theme.setNotificationSound(xml.getText());
+                            theme.setNotificationTitle(title);
+                            break;
+                    }
+                    break;
+                case XmlPullParser.END_TAG:
+                    tagNum--;
+                    break;
+            }
+            eventType = xml.next();
+        }
+    }
+
+    private static void backgroundParser(XmlPullParser xml, ThemeItem theme) throws XmlPullParserException, IOException {
+        int eventType = xml.next();
+        String tagName = null;
+        int tagNum = 0;
+        double ratioWidth = -1, ratioHeight = -1;
+        while (eventType != XmlPullParser.END_TAG || tagNum > 0) {
+            switch (eventType) {
+                case XmlPullParser.START_TAG:
+                    tagName = xml.getName().toLowerCase();
+                    tagNum++;
+                    if (tagName.equals(Constants.THEME_DATA_XML_BACKGROUND_WALLPAPER) || tagName.equals(Constants.THEME_DATA_XML_BACKGROUND_LOCKSCREEN)) {
+                        ratioWidth = ratioHeight = -1;
+                        for (int i = 0; i < xml.getAttributeCount(); i++) {
+                            if (xml.getAttributeName(i).equals(Constants.THEME_DATA_XML_BACKGROUND_RATIO_WIDTH)) {
+                                ratioWidth = Float.parseFloat(xml.getAttributeValue(i));
+                            } else if (xml.getAttributeName(i).equals(Constants.THEME_DATA_XML_BACKGROUND_RATIO_HEIGHT)) {
+                                ratioHeight = Float.parseFloat(xml.getAttributeValue(i));
+                            }
+                        }
+                    }
+                    break;
+                case XmlPullParser.TEXT:
+                    if (tagName != null)
+                    switch (tagName) {
+                        case Constants.THEME_DATA_XML_BACKGROUND_LOCKSCREEN:
+                            if (((ratioHeight == -1 || ratioWidth == -1) && !theme.hasLockScreen()) ||
+                                (DISPLAY_WIDTH / ratioWidth == DISPLAY_HEIGHT / ratioHeight)) {
+                                theme.setLockScreen(xml.getText());
+                            }
+                            break;
+                        case Constants.THEME_DATA_XML_BACKGROUND_WALLPAPER:
+                            if (((ratioHeight == -1 || ratioWidth == -1) && !theme.hasWallpaper()) ||
+                                    (DISPLAY_WIDTH / ratioWidth == DISPLAY_HEIGHT / ratioHeight)) {
+                                theme.setWallpaper(xml.getText());
+                            }
+                            break;
+                    }
+                    break;
+                case XmlPullParser.END_TAG:
+                    tagNum--;
+                    break;
+            }
+            eventType = xml.next();
+        }
+    }
+}
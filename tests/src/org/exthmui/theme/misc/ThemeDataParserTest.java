@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2019-2020 The exTHmUI Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.exthmui.theme.misc;
+
+import org.exthmui.theme.models.ThemeItem;
+import org.exthmui.theme.models.ThemeTarget;
+import org.junit.Test;
+import org.kxml2.io.KXmlParser;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ThemeDataParserTest {
+
+    // a hang in the parse loop fails the test instead of blocking the run
+    private static final int TIMEOUT_MS = 5000;
+
+    private static final String THEME_DATA =
+            "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n" +
+            "<theme>\n" +
+            "    <overlay>\n" +
+            "        <target>com.android.systemui</target>\n" +
+            "        <target switchable=\"false\">android</target>\n" +
+            "    </overlay>\n" +
+            "    <sounds>\n" +
+            "        <ringtone title=\"Ring\">ring.ogg</ringtone>\n" +
+            "        <alarm title=\"Alarm\">alarm.ogg</alarm>\n" +
+            "        <notification title=\"Note\">note.ogg</notification>\n" +
+            "    </sounds>\n" +
+            "    <backgrounds>\n" +
+            "        <wallpaper>wallpaper.png</wallpaper>\n" +
+            "        <lockscreen>lockscreen.png</lockscreen>\n" +
+            "    </backgrounds>\n" +
+            "</theme>\n";
+
+    private final Set<String> mInstalledTargets = new HashSet<>();
+    private final List<ThemeTarget> mTargets = new ArrayList<>();
+    private final ThemeItem mTheme = new ThemeItem("org.example.theme");
+
+    public ThemeDataParserTest() {
+        mInstalledTargets.add("com.android.systemui");
+        mInstalledTargets.add("android");
+    }
+
+    @Test(timeout = TIMEOUT_MS)
+    public void parsesAllSections() throws Exception {
+        parse(THEME_DATA);
+
+        assertEquals(2, mTargets.size());
+        assertEquals("com.android.systemui", mTargets.get(0).getTargetId());
+        assertTrue(mTargets.get(0).isSwitchable());
+        assertEquals("android", mTargets.get(1).getTargetId());
+        assertFalse(mTargets.get(1).isSwitchable());
+        assertEquals("ring.ogg", mTheme.getRingtone());
+        assertEquals("Ring", mTheme.getRingtoneTitle());
+        assertEquals("alarm.ogg", mTheme.getAlarmSound());
+        assertEquals("Alarm", mTheme.getAlarmTitle());
+        assertEquals("note.ogg", mTheme.getNotificationSound());
+        assertEquals("Note", mTheme.getNotificationTitle());
+        assertEquals("wallpaper.png", mTheme.getWallpaper());
+        assertEquals("lockscreen.png", mTheme.getLockScreen());
+    }
+
+    @Test(timeout = TIMEOUT_MS)
+    public void skipsUninstalledTarget() throws Exception {
+        // the old overlay loop spun forever on a target that didn't resolve
+        parse("<theme><overlay>" +
+                "<target>org.example.missing</target>" +
+                "<target>android</target>" +
+                "</overlay></theme>");
+
+        assertEquals(1, mTargets.size());
+        assertEquals("android", mTargets.get(0).getTargetId());
+    }
+
+    @Test(timeout = TIMEOUT_MS)
+    public void trimsWhitespaceAroundTarget() throws Exception {
+        // and on whitespace after <target>
+        parse("<theme><overlay>\n" +
+                "  <target>\n    com.android.systemui\n  </target>\n" +
+                "  <target> </target>\n" +
+                "</overlay></theme>");
+
+        assertEquals(1, mTargets.size());
+        assertEquals("com.android.systemui", mTargets.get(0).getTargetId());
+    }
+
+    @Test(timeout = TIMEOUT_MS)
+    public void matchesTagsIgnoringCase() throws Exception {
+        parse("<Theme><OVERLAY><Target SWITCHABLE=\"x\">android</Target></OVERLAY>" +
+                "<Sounds><RingTone title=\"Ring\">ring.ogg</RingTone></Sounds>" +
+                "<BACKGROUNDS><WallPaper>wallpaper.png</WallPaper></BACKGROUNDS></Theme>");
+
+        assertEquals(1, mTargets.size());
+        assertEquals("android", mTargets.get(0).getTargetId());
+        assertEquals("ring.ogg", mTheme.getRingtone());
+        assertEquals("wallpaper.png", mTheme.getWallpaper());
+    }
+
+    @Test(timeout = TIMEOUT_MS)
+    public void ignoresUnknownAndNestedElements() throws Exception {
+        parse("<theme>" +
+                "<unknown><target>com.android.systemui</target></unknown>" +
+                "<overlay>" +
+                "<extra>android</extra>" +
+                "<target><nested>com.android.systemui</nested></target>" +
+                "<target>android<!-- comment --></target>" +
+                "</overlay>" +
+                "<sounds><ringtone>ring.ogg</ringtone><unknown>x.ogg</unknown></sounds>" +
+                "</theme>");
+
+        assertEquals(1, mTargets.size());
+        assertEquals("android", mTargets.get(0).getTargetId());
+        assertEquals("ring.ogg", mTheme.getRingtone());
+        assertNull(mTheme.getRingtoneTitle());
+        assertNull(mTheme.getAlarmSound());
+    }
+
+    @Test(timeout = TIMEOUT_MS)
+    public void acceptsMissingOrGarbageSwitchable() throws Exception {
+        parse("<theme><overlay>" +
+                "<target>android</target>" +
+                "<target switchable=\"\">com.android.systemui</target>" +
+                "<target switchable=\"no\">android</target>" +
+                "<target switchable=\"FALSE\">com.android.systemui</target>" +
+                "</overlay></theme>");
+
+        assertEquals(4, mTargets.size());
+        assertTrue(mTargets.get(0).isSwitchable());
+        assertTrue(mTargets.get(1).isSwitchable());
+        assertTrue(mTargets.get(2).isSwitchable());
+        assertFalse(mTargets.get(3).isSwitchable());
+    }
+
+    @Test(timeout = TIMEOUT_MS)
+    public void treatsGarbageRatiosAsUnknown() throws Exception {
+        // only the image bounds are known, the variant matching the display wins
+        WallpaperSelector selector = new WallpaperSelector(1080, 1920, (file, outSize) -> {
+            outSize[0] = file.startsWith("portrait") ? 1080 : 1920;
+            outSize[1] = file.startsWith("portrait") ? 1920 : 1080;
+            return true;
+        });
+        parse(new ThemeDataParser(this::resolve, selector), "<theme><backgrounds>" +
+                "<wallpaper ratio_width=\"abc\" ratio_height=\"\">landscape.png</wallpaper>" +
+                "<wallpaper ratio_width=\"NaN-ish\">portrait.png</wallpaper>" +
+                "<lockscreen ratio_height=\"16\">landscape.png</lockscreen>" +
+                "</backgrounds></theme>");
+
+        assertEquals("portrait.png", mTheme.getWallpaper());
+        assertEquals("landscape.png", mTheme.getLockScreen());
+    }
+
+    @Test(timeout = TIMEOUT_MS)
+    public void treatsNonFiniteRatiosAsUnknown() throws Exception {
+        // Infinity / Infinity used to score NaN, which never beat any other score
+        parse("<theme><backgrounds>" +
+                "<wallpaper ratio_width=\"Infinity\" ratio_height=\"Infinity\">a.png</wallpaper>" +
+                "<wallpaper ratio_width=\"NaN\" ratio_height=\"1\">b.png</wallpaper>" +
+                "</backgrounds></theme>");
+
+        assertEquals("a.png", mTheme.getWallpaper());
+    }
+
+    @Test(timeout = TIMEOUT_MS)
+    public void leavesBackgroundsAloneWithoutSelector() throws Exception {
+        parse(new ThemeDataParser(this::resolve, null), THEME_DATA);
+
+        assertEquals(2, mTargets.size());
+        assertNull(mTheme.getWallpaper());
+        assertNull(mTheme.getLockScreen());
+    }
+
+    @Test(timeout = TIMEOUT_MS)
+    public void parsesEmptyDocument() throws Exception {
+        parse("<theme/>");
+
+        assertTrue(mTargets.isEmpty());
+        assertNull(mTheme.getWallpaper());
+    }
+
+    @Test(timeout = TIMEOUT_MS)
+    public void failsOnTruncatedDocuments() {
+        // every prefix either parses or throws a parse error, it never hangs or crashes
+        int failures = 0;
+        for (int length = 0; length < THEME_DATA.length(); length++) {
+            if (!parseQuietly(THEME_DATA.substring(0, length))) failures++;
+        }
+        assertTrue(failures > 0);
+    }
+
+    @Test(timeout = TIMEOUT_MS)
+    public void survivesRandomMutations() {
+        Random random = new Random(0x7e3e);
+        String alphabet = "<>/=\" \n\tabcdefghijklmnopqrstuvwxyz.!-?&;";
+        for (int i = 0; i < 2000; i++) {
+            StringBuilder document = new StringBuilder(THEME_DATA);
+            int mutations = 1 + random.nextInt(8);
+            for (int j = 0; j < mutations; j++) {
+                int position = random.nextInt(document.length());
+                switch (random.nextInt(3)) {
+                    case 0:
+                        document.deleteCharAt(position);
+                        break;
+                    case 1:
+                        document.insert(position, alphabet.charAt(random.nextInt(alphabet.length())));
+                        break;
+                    default:
+                        document.setCharAt(position, alphabet.charAt(random.nextInt(alphabet.length())));
+                        break;
+                }
+            }
+            parseQuietly(document.toString());
+        }
+    }
+
+    private ThemeTarget resolve(String packageName) {
+        if (!mInstalledTargets.contains(packageName)) return null;
+        return new ThemeTarget(packageName, ThemeTarget.TYPE_APPLICATIONS);
+    }
+
+    private void parse(String document) throws XmlPullParserException, IOException {
+        parse(new ThemeDataParser(this::resolve, new WallpaperSelector(1080, 1920, null)), document);
+    }
+
+    private void parse(ThemeDataParser parser, String document) throws XmlPullParserException, IOException {
+        mTargets.clear();
+        XmlPullParser xml = new KXmlParser();
+        xml.setInput(new StringReader(document));
+        parser.parse(xml, mTheme, mTargets);
+    }
+
+    // false when the document was rejected, anything other than a parse error fails the test
+    private boolean parseQuietly(String document) {
+        try {
+            parse(document);
+            return true;
+        } catch (XmlPullParserException | IOException e) {
+            return false;
+        } catch (RuntimeException e) {
+            fail("Unexpected " + e + " for document:\n" + document);
+            return false;
+        }
+    }
+}
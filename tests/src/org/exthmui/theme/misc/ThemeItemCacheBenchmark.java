@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2019-2020 The exTHmUI Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.exthmui.theme.misc;
+
+import org.exthmui.theme.models.ThemeItem;
+import org.exthmui.theme.models.ThemeTarget;
+import org.junit.Test;
+import org.kxml2.io.KXmlParser;
+import org.xmlpull.v1.XmlPullParser;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Cold theme_data.xml parse against a ThemeItemCache hit for a theme
+ * overlaying 200 targets. The cache file is read with a single readFully,
+ * so this compares decoding the cached bytes with parsing the xml.
+ */
+public class ThemeItemCacheBenchmark {
+
+    private static final String PACKAGE_NAME = "org.example.theme";
+    private static final String CACHE_KEY = PACKAGE_NAME + "@1/1080x2340/en-US";
+    private static final int TARGET_COUNT = 200;
+
+    @Test
+    public void cacheLoadAgainstColdParse() throws Exception {
+        String themeData = buildThemeData(TARGET_COUNT);
+        byte[] cached = write(parse(themeData));
+
+        ThemeItem fromCache = read(cached);
+        assertEquals(TARGET_COUNT, fromCache.getOverlayTargets().size());
+        assertEquals("org.example.target199", fromCache.getOverlayTargets().get(TARGET_COUNT - 1).getTargetId());
+        assertEquals("ring.ogg", fromCache.getRingtone());
+
+        new Benchmark("theme_data.xml with " + TARGET_COUNT + " targets", 200, 500).compare(
+                "parse", () -> parse(themeData),
+                "cache", () -> read(cached));
+    }
+
+    private static ThemeItem parse(String themeData) throws Exception {
+        ThemeItem theme = new ThemeItem(PACKAGE_NAME);
+        List<ThemeTarget> overlayTargets = new ArrayList<>();
+        ThemeDataParser parser = new ThemeDataParser(packageName -> {
+            ThemeTarget target = new ThemeTarget(packageName, ThemeTarget.TYPE_APPLICATIONS);
+            target.setLabel(packageName);
+            return target;
+        }, new WallpaperSelector(1080, 2340, null));
+        XmlPullParser xml = new KXmlParser();
+        xml.setInput(new StringReader(themeData));
+        parser.parse(xml, theme, overlayTargets);
+        theme.setOverlayTargets(overlayTargets);
+        return theme;
+    }
+
+    private static ThemeItem read(byte[] cached) throws Exception {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(cached))) {
+            return ThemeItemCache.read(in, PACKAGE_NAME, CACHE_KEY);
+        }
+    }
+
+    private static byte[] write(ThemeItem theme) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            ThemeItemCache.write(out, theme, CACHE_KEY);
+        }
+        return bytes.toByteArray();
+    }
+
+    static String buildThemeData(int targetCount) {
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<theme>\n    <overlay>\n");
+        for (int i = 0; i < targetCount; i++) {
+            xml.append("        <target").append(i % 10 == 0 ? " switchable=\"false\"" : "")
+                    .append(">org.example.target").append(i).append("</target>\n");
+        }
+        xml.append("    </overlay>\n    <sounds>\n")
+                .append("        <ringtone title=\"Ring\">ring.ogg</ringtone>\n")
+                .append("        <alarm title=\"Alarm\">alarm.ogg</alarm>\n")
+                .append("        <notification title=\"Note\">note.ogg</notification>\n")
+                .append("    </sounds>\n    <backgrounds>\n")
+                .append("        <wallpaper ratio_width=\"9\" ratio_height=\"16\">wallpaper_16x9.png</wallpaper>\n")
+                .append("        <wallpaper ratio_width=\"9\" ratio_height=\"19.5\">wallpaper.png</wallpaper>\n")
+                .append("        <lockscreen>lockscreen.png</lockscreen>\n")
+                .append("    </backgrounds>\n</theme>\n");
+        return xml.toString();
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2019-2020 The exTHmUI Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.exthmui.theme.misc;
+
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.Bundle;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+public class ThemePackageScannerTest {
+
+    private static final int PACKAGE_COUNT = 5000;
+    // every THEME_INTERVAL-th package is a theme
+    private static final int THEME_INTERVAL = 100;
+
+    private final List<PackageInfo> mPackages = new ArrayList<>();
+    private PackageManager mPackageManager;
+    private ThemeIndex mThemeIndex;
+    private ThemePackageScanner mScanner;
+
+    @Before
+    public void setUp() {
+        Bundle themeMetaData = mock(Bundle.class);
+        when(themeMetaData.getBoolean(Constants.THEME_DATA_FLAG, false)).thenReturn(true);
+        Bundle otherMetaData = mock(Bundle.class);
+
+        for (int i = 0; i < PACKAGE_COUNT; i++) {
+            PackageInfo pkgInfo = new PackageInfo();
+            pkgInfo.packageName = "org.example.package" + i;
+            pkgInfo.lastUpdateTime = 1000;
+            pkgInfo.applicationInfo = new ApplicationInfo();
+            // some packages have no meta-data at all
+            if (i % THEME_INTERVAL == 0) {
+                pkgInfo.applicationInfo.metaData = themeMetaData;
+            } else if (i % 2 == 0) {
+                pkgInfo.applicationInfo.metaData = otherMetaData;
+            }
+            mPackages.add(pkgInfo);
+        }
+
+        mPackageManager = mock(PackageManager.class);
+        when(mPackageManager.getInstalledPackages(PackageManager.GET_META_DATA)).thenReturn(mPackages);
+        mThemeIndex = new ThemeIndex(new File("theme_index"), "en-US");
+        mScanner = new ThemePackageScanner(mPackageManager, mThemeIndex);
+    }
+
+    @Test
+    public void firstScanReportsEveryPackageWithOneCall() {
+        List<ThemePackageScanner.Item> items = new ArrayList<>();
+        List<PackageInfo> installed = mScanner.scan(items);
+
+        assertSame(mPackages, installed);
+        assertEquals(PACKAGE_COUNT, items.size());
+        int themes = 0;
+        for (int i = 0; i < PACKAGE_COUNT; i++) {
+            ThemePackageScanner.Item item = items.get(i);
+            assertSame(mPackages.get(i), item.pkgInfo);
+            assertTrue(item.changed);
+            assertNull(item.entry);
+            assertEquals(i % THEME_INTERVAL == 0, item.isTheme);
+            if (item.isTheme) themes++;
+        }
+        assertEquals(PACKAGE_COUNT / THEME_INTERVAL, themes);
+
+        verify(mPackageManager, times(1)).getInstalledPackages(PackageManager.GET_META_DATA);
+        verifyNoMoreInteractions(mPackageManager);
+    }
+
+    @Test
+    public void rescanReportsOnlyChangesAndThemesWithOneCall() {
+        index(mScanner.scan(new ArrayList<>()));
+
+        // one theme and one other package updated, one package became a theme
+        mPackages.get(THEME_INTERVAL).lastUpdateTime = 2000;
+        mPackages.get(1).lastUpdateTime = 2000;
+        mPackages.get(3).lastUpdateTime = 2000;
+        mPackages.get(3).applicationInfo.metaData = mPackages.get(0).applicationInfo.metaData;
+
+        List<ThemePackageScanner.Item> items = new ArrayList<>();
+        mScanner.scan(items);
+
+        List<String> changed = new ArrayList<>();
+        int unchangedThemes = 0;
+        for (ThemePackageScanner.Item item : items) {
+            if (item.changed) {
+                changed.add(item.pkgInfo.packageName);
+            } else {
+                assertTrue(item.isTheme);
+                assertTrue(item.entry.isTheme);
+                unchangedThemes++;
+            }
+        }
+        assertEquals(3, changed.size());
+        assertEquals(PACKAGE_COUNT / THEME_INTERVAL - 1, unchangedThemes);
+
+        // discovery order is kept
+        assertEquals("org.example.package0", items.get(0).pkgInfo.packageName);
+        assertFalse(items.get(0).changed);
+        assertEquals("org.example.package1", items.get(1).pkgInfo.packageName);
+        assertFalse(items.get(1).isTheme);
+        assertFalse(items.get(1).entry.isTheme);
+        assertEquals("org.example.package3", items.get(2).pkgInfo.packageName);
+        assertTrue(items.get(2).isTheme);
+        assertFalse(items.get(2).entry.isTheme);
+        ThemePackageScanner.Item updatedTheme = items.get(3);
+        assertEquals("org.example.package" + THEME_INTERVAL, updatedTheme.pkgInfo.packageName);
+        assertTrue(updatedTheme.changed);
+        assertTrue(updatedTheme.isTheme);
+        assertTrue(updatedTheme.entry.isTheme);
+
+        verify(mPackageManager, times(2)).getInstalledPackages(PackageManager.GET_META_DATA);
+        verifyNoMoreInteractions(mPackageManager);
+    }
+
+    @Test
+    public void emptyMetaDataIsNotATheme() {
+        assertFalse(ThemePackageScanner.isThemeApplication(null));
+        assertFalse(ThemePackageScanner.isThemeApplication(new ApplicationInfo()));
+        assertFalse(ThemePackageScanner.isThemeApplication(mPackages.get(2).applicationInfo));
+        assertTrue(ThemePackageScanner.isThemeApplication(mPackages.get(0).applicationInfo));
+    }
+
+    // indexes the scanned packages the way the data service does after inspecting them
+    private void index(List<PackageInfo> packages) {
+        for (PackageInfo pkgInfo : packages) {
+            ThemeIndex.Entry entry = new ThemeIndex.Entry(pkgInfo);
+            entry.isTheme = ThemePackageScanner.isThemeApplication(pkgInfo.applicationInfo);
+            mThemeIndex.put(entry);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2019-2020 The exTHmUI Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.exthmui.theme.misc;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class WallpaperSelectorTest {
+
+    private static final int DISPLAY_WIDTH = 1080;
+    private static final int DISPLAY_HEIGHT = 2340;
+
+    // image bounds by file name, files not in here have unknown bounds
+    private final Map<String, int[]> mBounds = new HashMap<>();
+    private final List<String> mDecoded = new ArrayList<>();
+
+    private final WallpaperSelector mSelector = new WallpaperSelector(DISPLAY_WIDTH, DISPLAY_HEIGHT,
+            (file, outSize) -> {
+                mDecoded.add(file);
+                int[] bounds = mBounds.get(file);
+                if (bounds == null) return false;
+                outSize[0] = bounds[0];
+                outSize[1] = bounds[1];
+                return true;
+            });
+
+    @Test
+    public void returnsNullWithoutVariants() {
+        assertNull(mSelector.select(new ArrayList<>()));
+    }
+
+    @Test
+    public void returnsSingleVariantWithoutDecoding() {
+        assertEquals("only.png", mSelector.select(Arrays.asList(variant("only.png", 16, 9))));
+        assertTrue(mDecoded.isEmpty());
+    }
+
+    @Test
+    public void prefersClosestDeclaredRatio() {
+        assertEquals("19.5x9.png", mSelector.select(Arrays.asList(
+                variant("16x9.png", 9, 16),
+                variant("19.5x9.png", 9, 19.5),
+                variant("square.png", 1, 1))));
+    }
+
+    @Test
+    public void comparesRatiosOnLogScale() {
+        // a linear difference would pick tall.png, the log of the ratio picks wide.png
+        WallpaperSelector selector = new WallpaperSelector(1000, 2166, null);
+        assertEquals("wide.png", selector.select(Arrays.asList(
+                variant("tall.png", 1, 2.35),
+                variant("wide.png", 1, 2))));
+    }
+
+    @Test
+    public void fallsBackToImageBoundsForRatio() {
+        mBounds.put("landscape.png", new int[] {2340, 1080});
+        mBounds.put("portrait.png", new int[] {1080, 2340});
+        assertEquals("portrait.png", mSelector.select(Arrays.asList(
+                unknown("landscape.png"),
+                unknown("portrait.png"))));
+    }
+
+    @Test
+    public void declaredRatioWinsOverBounds() {
+        // the declared ratio describes the intended crop, bounds only add the scale penalty
+        mBounds.put("a.png", new int[] {2160, 4680});
+        mBounds.put("b.png", new int[] {2160, 4680});
+        assertEquals("b.png", mSelector.select(Arrays.asList(
+                variant("a.png", 1, 1),
+                variant("b.png", 9, 19.5))));
+    }
+
+    @Test
+    public void penalizesUpscalingMoreThanDownscaling() {
+        mBounds.put("small.png", new int[] {540, 1170});
+        mBounds.put("large.png", new int[] {4320, 9360});
+        assertEquals("large.png", mSelector.select(Arrays.asList(
+                unknown("small.png"),
+                unknown("large.png"))));
+    }
+
+    @Test
+    public void prefersNativeResolution() {
+        mBounds.put("native.png", new int[] {1080, 2340});
+        mBounds.put("double.png", new int[] {2160, 4680});
+        assertEquals("native.png", mSelector.select(Arrays.asList(
+                unknown("double.png"),
+                unknown("native.png"))));
+    }
+
+    @Test
+    public void prefersSharpImageOverSlightlyCloserRatio() {
+        // a small ratio error is cropped away, a blurry upscale is not
+        mBounds.put("blurry.png", new int[] {270, 585});
+        mBounds.put("sharp.png", new int[] {1080, 2160});
+        assertEquals("sharp.png", mSelector.select(Arrays.asList(
+                unknown("blurry.png"),
+                unknown("sharp.png"))));
+    }
+
+    @Test
+    public void ranksUnknownRatioBetweenGoodAndBadMatches() {
+        assertEquals("unknown.png", mSelector.select(Arrays.asList(
+                variant("landscape.png", 16, 9),
+                unknown("unknown.png"))));
+        assertEquals("portrait.png", mSelector.select(Arrays.asList(
+                unknown("unknown.png"),
+                variant("portrait.png", 9, 19.5))));
+    }
+
+    @Test
+    public void ignoresInvalidBounds() {
+        mBounds.put("broken.png", new int[] {0, -1});
+        assertEquals("portrait.png", mSelector.select(Arrays.asList(
+                unknown("broken.png"),
+                variant("portrait.png", 9, 19.5))));
+    }
+
+    @Test
+    public void keepsFirstVariantOnTie() {
+        assertEquals("first.png", mSelector.select(Arrays.asList(
+                unknown("first.png"),
+                unknown("second.png"),
+                unknown("third.png"))));
+        assertEquals("first.png", mSelector.select(Arrays.asList(
+                variant("first.png", 9, 16),
+                variant("second.png", 9, 16))));
+    }
+
+    @Test
+    public void worksWithoutBoundsDecoder() {
+        WallpaperSelector selector = new WallpaperSelector(DISPLAY_WIDTH, DISPLAY_HEIGHT, null);
+        assertEquals("portrait.png", selector.select(Arrays.asList(
+                unknown("unknown.png"),
+                variant("portrait.png", 9, 19.5))));
+    }
+
+    private static WallpaperSelector.Variant variant(String file, double ratioWidth, double ratioHeight) {
+        return new WallpaperSelector.Variant(file, ratioWidth, ratioHeight);
+    }
+
+    private static WallpaperSelector.Variant unknown(String file) {
+        return new WallpaperSelector.Variant(file, -1, -1);
+    }
+}